@@ -1,4 +1,9 @@
 -- drop all tables
+drop table if exists import_state;
+drop table if exists import_chunk;
+drop table if exists video_stats;
+drop table if exists danmu_hist;
+drop table if exists user_identity;
 drop table if exists user_like_danmu;
 drop table if exists user_fav_video;
 drop table if exists user_like_video;
@@ -94,23 +99,42 @@ drop function if exists verify_video_req;
 -- drop function if exists user_reg_check;
 drop function if exists user_reg_sustc;
 drop function if exists user_del_sustc;
+drop function if exists user_del_sustc_by_mid;
 drop function if exists add_follow;
+drop function if exists add_follow_by_mid;
 drop function if exists get_user_info;
 drop function if exists generate_unique_bv;
 drop function if exists post_video;
+drop function if exists post_video_by_mid;
 drop function if exists del_video;
+drop function if exists del_video_by_mid;
 drop function if exists update_video;
+drop function if exists update_video_by_mid;
 drop function if exists search_video;
+drop function if exists search_video_by_mid;
 drop function if exists get_avg_view_rate;
 drop function if exists get_hotspot;
 drop function if exists rev_video;
+drop function if exists rev_video_by_mid;
 drop function if exists coin_video;
+drop function if exists coin_video_by_mid;
 drop function if exists like_video;
+drop function if exists like_video_by_mid;
 drop function if exists fav_video;
+drop function if exists fav_video_by_mid;
 drop function if exists send_danmu;
+drop function if exists send_danmu_by_mid;
+drop function if exists send_danmu_batch;
 drop function if exists display_danmu;
+drop function if exists display_danmu_capped;
+drop function if exists bump_video_stats;
+drop function if exists popularity_ranking;
+drop function if exists get_hotspot_rollup;
 drop function if exists like_danmu;
+drop function if exists like_danmu_by_mid;
 drop function if exists recommend_next_video;
 drop function if exists general_recommendations;
 drop function if exists recommend_video_for_user;
-drop function if exists recommend_friends;
\ No newline at end of file
+drop function if exists recommend_video_for_user_by_mid;
+drop function if exists recommend_friends;
+drop function if exists recommend_friends_by_mid;
\ No newline at end of file
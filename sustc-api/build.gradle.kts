@@ -12,6 +12,8 @@ plugins {
 
 dependencies {
     implementation("org.springframework.boot:spring-boot-starter-jdbc")
+    // provided by sustc-runner at runtime, used for binary COPY during import
+    compileOnly("org.postgresql:postgresql")
 
     // You may add any utility library you want to use, such as guava.
     // ORM libraries are prohibited in this project.
@@ -35,4 +35,10 @@ public class AuthInfo implements Serializable {
      * OIDC login by WeChat, does not require a password.
      */
     private String wechat;
+
+    /**
+     * A session token returned by {@link io.sustc.service.UserService#login(AuthInfo)}.
+     * When it is non-empty, the other fields are ignored.
+     */
+    private String token;
 }
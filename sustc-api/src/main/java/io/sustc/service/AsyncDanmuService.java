@@ -0,0 +1,45 @@
+package io.sustc.service;
+
+import io.sustc.dto.AuthInfo;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of {@link DanmuService}.
+ * <p>
+ * Every method returns without waiting for the database, with a future of the result of the
+ * {@link DanmuService} method of the same name. While too many calls are in flight, a method waits up to
+ * {@code sustc.async.acquire-timeout-ms} for one of them to finish, then returns a future failed with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ * Cancelling the future skips a call that has not started, and interrupts one that has.
+ * {@link DanmuService#streamDanmu} and {@link DanmuService#subscribe} do not wait for the database, so they have
+ * no counterpart here.
+ */
+public interface AsyncDanmuService {
+
+    /**
+     * Sends a danmu as {@link DanmuService#sendDanmuAsync}, which only waits, up to
+     * {@code sustc.danmu.ingest.offer-timeout-ms}, while the send queue is full.
+     * A danmu already queued is sent even if the future is cancelled.
+     *
+     * @see DanmuService#sendDanmu(AuthInfo, String, String, float)
+     */
+    CompletableFuture<Long> sendDanmu(AuthInfo auth, String bv, String content, float time);
+
+    /**
+     * @see DanmuService#displayDanmu(String, float, float, boolean)
+     */
+    CompletableFuture<List<Long>> displayDanmu(String bv, float timeStart, float timeEnd, boolean filter);
+
+    /**
+     * @see DanmuService#displayDanmu(String, float, float, boolean, float, int, boolean)
+     */
+    CompletableFuture<List<Long>> displayDanmu(String bv, float timeStart, float timeEnd, boolean filter,
+                                               float window, int limit, boolean mostLiked);
+
+    /**
+     * @see DanmuService#likeDanmu(AuthInfo, long)
+     */
+    CompletableFuture<Boolean> likeDanmu(AuthInfo auth, long id);
+}
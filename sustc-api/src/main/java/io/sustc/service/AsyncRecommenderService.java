@@ -0,0 +1,38 @@
+package io.sustc.service;
+
+import io.sustc.dto.AuthInfo;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of {@link RecommenderService}.
+ * <p>
+ * Every method returns without waiting for the database, with a future of the result of the
+ * {@link RecommenderService} method of the same name. While too many calls are in flight, a method waits up to
+ * {@code sustc.async.acquire-timeout-ms} for one of them to finish, then returns a future failed with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ * Cancelling the future skips a call that has not started, and interrupts one that has.
+ */
+public interface AsyncRecommenderService {
+
+    /**
+     * @see RecommenderService#recommendNextVideo(String)
+     */
+    CompletableFuture<List<String>> recommendNextVideo(String bv);
+
+    /**
+     * @see RecommenderService#generalRecommendations(int, int)
+     */
+    CompletableFuture<List<String>> generalRecommendations(int pageSize, int pageNum);
+
+    /**
+     * @see RecommenderService#recommendVideosForUser(AuthInfo, int, int)
+     */
+    CompletableFuture<List<String>> recommendVideosForUser(AuthInfo auth, int pageSize, int pageNum);
+
+    /**
+     * @see RecommenderService#recommendFriends(AuthInfo, int, int)
+     */
+    CompletableFuture<List<Long>> recommendFriends(AuthInfo auth, int pageSize, int pageNum);
+}
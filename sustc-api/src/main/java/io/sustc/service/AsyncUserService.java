@@ -0,0 +1,49 @@
+package io.sustc.service;
+
+import io.sustc.dto.AuthInfo;
+import io.sustc.dto.RegisterUserReq;
+import io.sustc.dto.UserInfoResp;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of {@link UserService}.
+ * <p>
+ * Every method returns without waiting for the database, with a future of the result of the
+ * {@link UserService} method of the same name. While too many calls are in flight, a method waits up to
+ * {@code sustc.async.acquire-timeout-ms} for one of them to finish, then returns a future failed with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ * Cancelling the future skips a call that has not started, and interrupts one that has.
+ */
+public interface AsyncUserService {
+
+    /**
+     * @see UserService#register(RegisterUserReq)
+     */
+    CompletableFuture<Long> register(RegisterUserReq req);
+
+    /**
+     * @see UserService#login(AuthInfo)
+     */
+    CompletableFuture<String> login(AuthInfo auth);
+
+    /**
+     * @see UserService#logout(String)
+     */
+    CompletableFuture<Boolean> logout(String token);
+
+    /**
+     * @see UserService#deleteAccount(AuthInfo, long)
+     */
+    CompletableFuture<Boolean> deleteAccount(AuthInfo auth, long mid);
+
+    /**
+     * @see UserService#follow(AuthInfo, long)
+     */
+    CompletableFuture<Boolean> follow(AuthInfo auth, long followeeMid);
+
+    /**
+     * @see UserService#getUserInfo(long)
+     */
+    CompletableFuture<UserInfoResp> getUserInfo(long mid);
+}
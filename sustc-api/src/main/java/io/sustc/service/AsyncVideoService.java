@@ -0,0 +1,70 @@
+package io.sustc.service;
+
+import io.sustc.dto.AuthInfo;
+import io.sustc.dto.PostVideoReq;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of {@link VideoService}.
+ * <p>
+ * Every method returns without waiting for the database, with a future of the result of the
+ * {@link VideoService} method of the same name. While too many calls are in flight, a method waits up to
+ * {@code sustc.async.acquire-timeout-ms} for one of them to finish, then returns a future failed with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ * Cancelling the future skips a call that has not started, and interrupts one that has.
+ */
+public interface AsyncVideoService {
+
+    /**
+     * @see VideoService#postVideo(AuthInfo, PostVideoReq)
+     */
+    CompletableFuture<String> postVideo(AuthInfo auth, PostVideoReq req);
+
+    /**
+     * @see VideoService#deleteVideo(AuthInfo, String)
+     */
+    CompletableFuture<Boolean> deleteVideo(AuthInfo auth, String bv);
+
+    /**
+     * @see VideoService#updateVideoInfo(AuthInfo, String, PostVideoReq)
+     */
+    CompletableFuture<Boolean> updateVideoInfo(AuthInfo auth, String bv, PostVideoReq req);
+
+    /**
+     * @see VideoService#searchVideo(AuthInfo, String, int, int)
+     */
+    CompletableFuture<List<String>> searchVideo(AuthInfo auth, String keywords, int pageSize, int pageNum);
+
+    /**
+     * @see VideoService#getAverageViewRate(String)
+     */
+    CompletableFuture<Double> getAverageViewRate(String bv);
+
+    /**
+     * @see VideoService#getHotspot(String)
+     */
+    CompletableFuture<Set<Integer>> getHotspot(String bv);
+
+    /**
+     * @see VideoService#reviewVideo(AuthInfo, String)
+     */
+    CompletableFuture<Boolean> reviewVideo(AuthInfo auth, String bv);
+
+    /**
+     * @see VideoService#coinVideo(AuthInfo, String)
+     */
+    CompletableFuture<Boolean> coinVideo(AuthInfo auth, String bv);
+
+    /**
+     * @see VideoService#likeVideo(AuthInfo, String)
+     */
+    CompletableFuture<Boolean> likeVideo(AuthInfo auth, String bv);
+
+    /**
+     * @see VideoService#collectVideo(AuthInfo, String)
+     */
+    CompletableFuture<Boolean> collectVideo(AuthInfo auth, String bv);
+}
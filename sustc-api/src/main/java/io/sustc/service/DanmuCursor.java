@@ -0,0 +1,21 @@
+package io.sustc.service;
+
+/**
+ * Danmu ids streamed by {@link DanmuService#streamDanmu}, read in chunks.
+ * <p>
+ * The cursor holds a database connection until it is exhausted or closed.
+ */
+public interface DanmuCursor extends AutoCloseable {
+
+    /**
+     * Reads the next ids in order.
+     *
+     * @param ids the buffer to fill, reused by the caller between calls
+     * @return the number of ids read, or {@code -1} once every id has been read
+     * @throws IllegalStateException if the query failed, after the ids read before the failure were returned
+     */
+    int read(long[] ids);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,30 @@
+package io.sustc.service;
+
+/**
+ * Receives the danmus sent to a video, see {@link DanmuService#subscribe}.
+ * <p>
+ * The methods are called on a delivery thread, one call at a time for each subscription, in the order the danmus were sent.
+ * The few delivery threads are shared by all the subscriptions, so the methods must return quickly and never block,
+ * on I/O or a lock for instance; a listener with blocking work shall hand it to an executor of its own.
+ */
+@FunctionalInterface
+public interface DanmuListener {
+
+    /**
+     * Called for every danmu accepted by {@link DanmuService#sendDanmu} after the subscription.
+     *
+     * @param danmuId the generated danmu id
+     * @param bv      the video's bv
+     * @param content the content of danmu
+     * @param time    seconds since the video starts
+     */
+    void onDanmu(long danmuId, String bv, String content, float time);
+
+    /**
+     * Called when the listener fell so far behind that some danmus were dropped before it could receive them.
+     *
+     * @param count the number of danmus dropped
+     */
+    default void onMissed(long count) {
+    }
+}
@@ -3,6 +3,7 @@ package io.sustc.service;
 import io.sustc.dto.AuthInfo;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface DanmuService {
 
@@ -26,6 +27,19 @@ public interface DanmuService {
      */
     long sendDanmu(AuthInfo auth, String bv, String content, float time);
 
+    /**
+     * Sends a danmu to a video without waiting for it, so that danmus sent at the same time are stored together.
+     * The danmu is checked as in {@link #sendDanmu}.
+     *
+     * @param auth    the current user's authentication information
+     * @param bv      the video's bv
+     * @param content the content of danmu
+     * @param time    seconds since the video starts
+     * @return the generated danmu id once the danmu is committed, or {@code -1} in the corner cases of {@link #sendDanmu};
+     * failed with a {@link java.util.concurrent.RejectedExecutionException} if the send queue stays full
+     */
+    CompletableFuture<Long> sendDanmuAsync(AuthInfo auth, String bv, String content, float time);
+
     /**
      * Display the danmus in a time range.
      * Similar to bilibili's mechanism, user can choose to only display part of the danmus to have a better watching
@@ -50,6 +64,52 @@ public interface DanmuService {
      */
     List<Long> displayDanmu(String bv, float timeStart, float timeEnd, boolean filter);
 
+    /**
+     * Displays the danmus in a time range, at most {@code limit} of them in every {@code window} seconds,
+     * so that the result stays readable and bounded on busy videos.
+     * The windows start at multiples of {@code window} since the video starts.
+     *
+     * @param bv        the video's bv
+     * @param timeStart the start time of the range
+     * @param timeEnd   the end time of the range
+     * @param filter    whether to remove the duplicated content first, as in {@link #displayDanmu}
+     * @param window    the length of a window in seconds
+     * @param limit     the maximum number of danmus of a window
+     * @param mostLiked whether to keep the most liked danmus of a window, otherwise the earliest posted ones
+     * @return a list of danmus id, sorted by {@code time}
+     * @apiNote In addition to the corner cases of {@link #displayDanmu}, {@code window} or {@code limit}
+     * may not be positive. If any of the corner case happened, {@code null} shall be returned.
+     */
+    List<Long> displayDanmu(String bv, float timeStart, float timeEnd, boolean filter,
+                            float window, int limit, boolean mostLiked);
+
+    /**
+     * Streams the danmus in a time range, for ranges too dense to be returned as a list.
+     * The ids are the same as those of {@link #displayDanmu}, sorted by {@code time} and then by id.
+     *
+     * @param bv        the video's bv
+     * @param timeStart the start time of the range
+     * @param timeEnd   the end time of the range
+     * @param filter    whether to remove the duplicated content, as in {@link #displayDanmu}
+     * @return a cursor over the danmus id, which shall be closed by the caller
+     * @apiNote If any of the corner cases of {@link #displayDanmu} happened, an empty cursor shall be returned.
+     */
+    DanmuCursor streamDanmu(String bv, float timeStart, float timeEnd, boolean filter);
+
+    /**
+     * Subscribes to the danmus sent to a video from now on.
+     * <p>
+     * Each accepted {@link #sendDanmu} is pushed to the listeners of the video, without waiting for them.
+     * A listener that falls behind by more than a bounded number of danmus misses the oldest ones,
+     * see {@link DanmuListener#onMissed}. The listener shares the delivery threads with all the others, so it
+     * must not block, see {@link DanmuListener}.
+     *
+     * @param bv       the video's bv
+     * @param listener the listener to call
+     * @return the subscription, which shall be closed by the caller
+     */
+    DanmuSubscription subscribe(String bv, DanmuListener listener);
+
     /**
      * Likes a danmu.
      * If the user already liked the danmu, this operation will cancel the like status.
@@ -0,0 +1,13 @@
+package io.sustc.service;
+
+/**
+ * A listener registered by {@link DanmuService#subscribe}.
+ */
+public interface DanmuSubscription extends AutoCloseable {
+
+    /**
+     * Stops the delivery, the listener may still receive a danmu being delivered.
+     */
+    @Override
+    void close();
+}
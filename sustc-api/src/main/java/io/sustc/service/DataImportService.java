@@ -0,0 +1,68 @@
+package io.sustc.service;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Bulk data operations beyond {@link DatabaseService#importData}.
+ */
+public interface DataImportService {
+
+    /**
+     * Imports data to an empty database, reading the records lazily.
+     * <p>
+     * Records are pulled and loaded in bounded chunks, so the dataset does not need to fit in memory.
+     * Each iterator is consumed by a single thread.
+     * Invalid data will not be provided.
+     *
+     * @param danmuRecords danmu records parsed from csv
+     * @param userRecords  user records parsed from csv
+     * @param videoRecords video records parsed from csv
+     */
+    void importData(
+            Iterator<DanmuRecord> danmuRecords,
+            Iterator<UserRecord> userRecords,
+            Iterator<VideoRecord> videoRecords
+    );
+
+    /**
+     * Merges a batch of records into a database populated by {@code importData}.
+     * <p>
+     * Existing users and videos are updated, new ones are added along with their follows,
+     * watch records, coins, likes and favorites. The danmu ids of the records are ignored,
+     * new ids are assigned, and a danmu equal to an existing one is not added twice.
+     * The whole batch is merged in one transaction, so it can be retried safely.
+     *
+     * @param danmuRecords new danmu records
+     * @param userRecords  new or changed user records
+     * @param videoRecords new or changed video records
+     * @throws IllegalStateException if the database has not been imported yet
+     */
+    void mergeData(
+            List<DanmuRecord> danmuRecords,
+            List<UserRecord> userRecords,
+            List<VideoRecord> videoRecords
+    );
+
+    /**
+     * Replaces all data with the given records without interrupting the services.
+     * <p>
+     * The records are imported into a staging schema, keys, indexes and functions included,
+     * while the services keep reading the current data. The staging schema then replaces
+     * the current one in a single transaction.
+     * Invalid data will not be provided.
+     *
+     * @param danmuRecords danmu records parsed from csv
+     * @param userRecords  user records parsed from csv
+     * @param videoRecords video records parsed from csv
+     */
+    void reloadData(
+            List<DanmuRecord> danmuRecords,
+            List<UserRecord> userRecords,
+            List<VideoRecord> videoRecords
+    );
+}
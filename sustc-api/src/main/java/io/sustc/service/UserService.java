@@ -23,6 +23,25 @@ public interface UserService {
      */
     long register(RegisterUserReq req);
 
+    /**
+     * Opens a session of the user.
+     * The returned token can be passed as {@link AuthInfo#getToken()} to any other method instead of the credentials,
+     * until it is not used for a while, the session is closed by {@link #logout(String)}, or the account is deleted.
+     *
+     * @param auth the credentials of the user
+     * @return the session token, or {@code null} if {@code auth} is invalid,
+     * as stated in {@link io.sustc.service.UserService#deleteAccount(AuthInfo, long)}
+     */
+    String login(AuthInfo auth);
+
+    /**
+     * Closes a session opened by {@link #login(AuthInfo)}.
+     *
+     * @param token the session token
+     * @return whether the session was open
+     */
+    boolean logout(String token);
+
     /**
      * Deletes a user.
      * The following relationships (this user following other users and other users following this user) shall be removed.
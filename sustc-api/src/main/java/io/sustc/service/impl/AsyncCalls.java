@@ -0,0 +1,115 @@
+package io.sustc.service.impl;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking service calls of the {@code Async*Service} implementations.
+ * <p>
+ * The calls run on {@code sustc.async.threads} threads, which only need to match the connection pool since a call
+ * holds a connection while it runs. Up to {@code sustc.async.max-in-flight} calls may be queued or running; a
+ * caller beyond that waits up to {@code sustc.async.acquire-timeout-ms}, then gets a future failed with a
+ * {@link RejectedExecutionException}. Cancelling a future drops the call if it has not started, or interrupts
+ * its thread if it has.
+ */
+@Component
+public class AsyncCalls {
+	@Value("${sustc.async.threads:10}")
+	private int threads = 10;
+
+	@Value("${sustc.async.max-in-flight:1024}")
+	private int maxInFlight = 1024;
+
+	@Value("${sustc.async.acquire-timeout-ms:1000}")
+	private long acquireTimeoutMillis = 1000;
+
+	/**
+	 * The future of a call, which cancels the call along with it.
+	 */
+	private static final class Call<T> extends CompletableFuture<T> {
+		volatile FutureTask<?> task;
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			FutureTask<?> running = task;
+			if (cancelled && running != null) {
+				running.cancel(true);
+			}
+			return cancelled;
+		}
+	}
+
+	private ThreadPoolExecutor pool;
+
+	private Semaphore inFlight;
+
+	@PostConstruct
+	public void start() {
+		AtomicInteger threadCount = new AtomicInteger();
+		int size = Math.max(threads, 1);
+		pool = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread thread = new Thread(r, "async-call-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		inFlight = new Semaphore(Math.max(maxInFlight, 1));
+	}
+
+	@PreDestroy
+	public void stop() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * @param call the blocking call
+	 * @return the future of its result, completed on a thread of the pool
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<T> call) {
+		try {
+			if (!inFlight.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				return CompletableFuture.failedFuture(
+					new RejectedExecutionException(maxInFlight + " calls are already in flight"));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return CompletableFuture.failedFuture(new RejectedExecutionException(e));
+		}
+		Call<T> future = new Call<>();
+		FutureTask<Void> task = new FutureTask<>(() -> {
+			future.complete(call.get());
+			return null;
+		}) {
+			@Override
+			protected void setException(Throwable t) {
+				future.completeExceptionally(t);
+				super.setException(t);
+			}
+
+			@Override
+			protected void done() {
+				inFlight.release();
+			}
+		};
+		future.task = task;
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			inFlight.release();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+}
@@ -0,0 +1,46 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import io.sustc.service.AsyncDanmuService;
+import io.sustc.service.DanmuService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@Service
+public class AsyncDanmuServiceImpl implements AsyncDanmuService {
+	@Autowired
+	private DanmuService danmuService;
+
+	@Autowired
+	private DanmuIngest ingest;
+
+	@Autowired
+	private AsyncCalls calls;
+
+	@Override
+	public CompletableFuture<Long> sendDanmu(AuthInfo auth, String bv, String content, float time) {
+		if (ingest.isEnabled()) {
+			return danmuService.sendDanmuAsync(auth, bv, content, time);
+		}
+		return calls.submit(() -> danmuService.sendDanmu(auth, bv, content, time));
+	}
+
+	@Override
+	public CompletableFuture<List<Long>> displayDanmu(String bv, float timeStart, float timeEnd, boolean filter) {
+		return calls.submit(() -> danmuService.displayDanmu(bv, timeStart, timeEnd, filter));
+	}
+
+	@Override
+	public CompletableFuture<List<Long>> displayDanmu(String bv, float timeStart, float timeEnd, boolean filter,
+	                                                  float window, int limit, boolean mostLiked) {
+		return calls.submit(() -> danmuService.displayDanmu(bv, timeStart, timeEnd, filter, window, limit, mostLiked));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> likeDanmu(AuthInfo auth, long id) {
+		return calls.submit(() -> danmuService.likeDanmu(auth, id));
+	}
+}
@@ -0,0 +1,39 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import io.sustc.service.AsyncRecommenderService;
+import io.sustc.service.RecommenderService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@Service
+public class AsyncRecommenderServiceImpl implements AsyncRecommenderService {
+	@Autowired
+	private RecommenderService recommenderService;
+
+	@Autowired
+	private AsyncCalls calls;
+
+	@Override
+	public CompletableFuture<List<String>> recommendNextVideo(String bv) {
+		return calls.submit(() -> recommenderService.recommendNextVideo(bv));
+	}
+
+	@Override
+	public CompletableFuture<List<String>> generalRecommendations(int pageSize, int pageNum) {
+		return calls.submit(() -> recommenderService.generalRecommendations(pageSize, pageNum));
+	}
+
+	@Override
+	public CompletableFuture<List<String>> recommendVideosForUser(AuthInfo auth, int pageSize, int pageNum) {
+		return calls.submit(() -> recommenderService.recommendVideosForUser(auth, pageSize, pageNum));
+	}
+
+	@Override
+	public CompletableFuture<List<Long>> recommendFriends(AuthInfo auth, int pageSize, int pageNum) {
+		return calls.submit(() -> recommenderService.recommendFriends(auth, pageSize, pageNum));
+	}
+}
@@ -0,0 +1,51 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import io.sustc.dto.RegisterUserReq;
+import io.sustc.dto.UserInfoResp;
+import io.sustc.service.AsyncUserService;
+import io.sustc.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CompletableFuture;
+
+@Service
+public class AsyncUserServiceImpl implements AsyncUserService {
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private AsyncCalls calls;
+
+	@Override
+	public CompletableFuture<Long> register(RegisterUserReq req) {
+		return calls.submit(() -> userService.register(req));
+	}
+
+	@Override
+	public CompletableFuture<String> login(AuthInfo auth) {
+		return calls.submit(() -> userService.login(auth));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> logout(String token) {
+		// only touches the session table
+		return CompletableFuture.completedFuture(userService.logout(token));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteAccount(AuthInfo auth, long mid) {
+		return calls.submit(() -> userService.deleteAccount(auth, mid));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> follow(AuthInfo auth, long followeeMid) {
+		return calls.submit(() -> userService.follow(auth, followeeMid));
+	}
+
+	@Override
+	public CompletableFuture<UserInfoResp> getUserInfo(long mid) {
+		return calls.submit(() -> userService.getUserInfo(mid));
+	}
+}
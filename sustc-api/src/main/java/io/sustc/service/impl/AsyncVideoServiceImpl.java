@@ -0,0 +1,71 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import io.sustc.dto.PostVideoReq;
+import io.sustc.service.AsyncVideoService;
+import io.sustc.service.VideoService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+@Service
+public class AsyncVideoServiceImpl implements AsyncVideoService {
+	@Autowired
+	private VideoService videoService;
+
+	@Autowired
+	private AsyncCalls calls;
+
+	@Override
+	public CompletableFuture<String> postVideo(AuthInfo auth, PostVideoReq req) {
+		return calls.submit(() -> videoService.postVideo(auth, req));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteVideo(AuthInfo auth, String bv) {
+		return calls.submit(() -> videoService.deleteVideo(auth, bv));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> updateVideoInfo(AuthInfo auth, String bv, PostVideoReq req) {
+		return calls.submit(() -> videoService.updateVideoInfo(auth, bv, req));
+	}
+
+	@Override
+	public CompletableFuture<List<String>> searchVideo(AuthInfo auth, String keywords, int pageSize, int pageNum) {
+		return calls.submit(() -> videoService.searchVideo(auth, keywords, pageSize, pageNum));
+	}
+
+	@Override
+	public CompletableFuture<Double> getAverageViewRate(String bv) {
+		return calls.submit(() -> videoService.getAverageViewRate(bv));
+	}
+
+	@Override
+	public CompletableFuture<Set<Integer>> getHotspot(String bv) {
+		return calls.submit(() -> videoService.getHotspot(bv));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> reviewVideo(AuthInfo auth, String bv) {
+		return calls.submit(() -> videoService.reviewVideo(auth, bv));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> coinVideo(AuthInfo auth, String bv) {
+		return calls.submit(() -> videoService.coinVideo(auth, bv));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> likeVideo(AuthInfo auth, String bv) {
+		return calls.submit(() -> videoService.likeVideo(auth, bv));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> collectVideo(AuthInfo auth, String bv) {
+		return calls.submit(() -> videoService.collectVideo(auth, bv));
+	}
+}
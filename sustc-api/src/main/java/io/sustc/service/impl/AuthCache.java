@@ -0,0 +1,202 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The users resolved by {@code verify_auth()}, so that an authenticated call passes the mid to the
+ * {@code *_by_mid()} functions instead of verifying the credentials again.
+ * <p>
+ * Credentials are keyed the way {@code verify_auth()} reads them: the password only counts with a positive mid,
+ * and a {@code null} qq or wechat is the same as an empty one. Only successful lookups are kept, up to
+ * {@code sustc.auth.cache-size} of them, evicting arbitrary ones beyond that. The users are active as long as they
+ * are kept, so deleting an account forgets every credential of that user, and replacing the data forgets all.
+ * <p>
+ * A non-empty {@link AuthInfo#getToken()} is looked up in the {@link SessionTable} instead, without touching the
+ * database, and the sessions of a user end along with its credentials.
+ */
+@Component
+@Slf4j
+public class AuthCache {
+	@Value("${sustc.auth.cache-size:65536}")
+	private int maxSize = 65536;
+
+	@Autowired
+	private SessionTable sessions;
+
+	@Autowired
+	private StatementDao statements;
+
+	public static final String USER = "USER";
+	public static final String SUPER = "SUPER";
+
+	private static final class Key {
+		final long mid;
+		final String password;
+		final String qq;
+		final String wechat;
+
+		Key(AuthInfo auth) {
+			boolean byPassword = auth.getMid() > 0 && auth.getPassword() != null && !auth.getPassword().isEmpty();
+			this.mid = byPassword ? auth.getMid() : 0;
+			this.password = byPassword ? auth.getPassword() : null;
+			this.qq = auth.getQq() == null || auth.getQq().isEmpty() ? null : auth.getQq();
+			this.wechat = auth.getWechat() == null || auth.getWechat().isEmpty() ? null : auth.getWechat();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return mid == key.mid && Objects.equals(password, key.password)
+				&& Objects.equals(qq, key.qq) && Objects.equals(wechat, key.wechat);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(mid, password, qq, wechat);
+		}
+	}
+
+	/**
+	 * A resolved user and its identity, {@link #USER} or {@link #SUPER}.
+	 */
+	public static final class User {
+		public final long mid;
+		public final String identity;
+
+		User(long mid, String identity) {
+			this.mid = mid;
+			this.identity = identity;
+		}
+	}
+
+	private final Map<Key, User> users = new ConcurrentHashMap<>();
+
+	/**
+	 * Bumped by every invalidation, a lookup started before that is not kept.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @param conn the connection of the caller, used on a miss
+	 * @return the mid of the user, or {@code -1} if the credentials are invalid
+	 */
+	public long resolve(Connection conn, AuthInfo auth) throws SQLException {
+		User user = user(conn, auth);
+		return user == null ? -1 : user.mid;
+	}
+
+	/**
+	 * @param conn the connection of the caller, used on a miss
+	 * @return the user, or {@code null} if the credentials are invalid
+	 */
+	public User user(Connection conn, AuthInfo auth) throws SQLException {
+		if (auth == null) {
+			return null;
+		}
+		if (auth.getToken() != null && !auth.getToken().isEmpty()) {
+			return sessions.user(auth.getToken());
+		}
+		Key key = new Key(auth);
+		User user = users.get(key);
+		if (user != null) {
+			return user;
+		}
+		long startGeneration = generation.get();
+		String verifySQL = """
+select verified.mid, user_active.identity
+	from (select verify_auth(?, ?, ?, ?) as mid) as verified
+	join user_active on user_active.mid = verified.mid;
+		""";
+		try (PreparedStatement stmt = statements.prepare(conn, verifySQL)) {
+			stmt.setLong(1, auth.getMid());
+			stmt.setString(2, auth.getPassword());
+			stmt.setString(3, auth.getQq());
+			stmt.setString(4, auth.getWechat());
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				user = new User(rs.getLong(1), rs.getString(2));
+			}
+		}
+		if (maxSize <= 0) {
+			return user;
+		}
+		if (users.size() >= maxSize) {
+			Iterator<Key> it = users.keySet().iterator();
+			if (it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		users.put(key, user);
+		if (generation.get() != startGeneration) {
+			users.remove(key);
+		}
+		return user;
+	}
+
+	/**
+	 * Opens a session of the user.
+	 *
+	 * @param conn the connection of the caller, used on a miss
+	 * @return the session token, or {@code null} if the credentials are invalid
+	 */
+	public String login(Connection conn, AuthInfo auth) throws SQLException {
+		while (true) {
+			long startGeneration = generation.get();
+			User user = user(conn, auth);
+			if (user == null) {
+				return null;
+			}
+			String token = sessions.open(user);
+			if (generation.get() == startGeneration) {
+				return token;
+			}
+			// the user may have been deleted meanwhile, and missed by the revocation
+			sessions.close(token);
+		}
+	}
+
+	/**
+	 * @return whether the session was open
+	 */
+	public boolean logout(String token) {
+		return token != null && sessions.close(token);
+	}
+
+	/**
+	 * Forgets every credential and session of a deleted user.
+	 */
+	public void invalidate(long mid) {
+		generation.incrementAndGet();
+		users.values().removeIf(it -> it.mid == mid);
+		sessions.revoke(mid);
+	}
+
+	/**
+	 * Forgets everything, after the users were replaced.
+	 */
+	public void clear() {
+		generation.incrementAndGet();
+		users.clear();
+		sessions.clear();
+	}
+}
@@ -0,0 +1,55 @@
+package io.sustc.service.impl;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Executes the rows added to a {@link PreparedStatement} in bounded batches.
+ * <p>
+ * A batch is sent once it holds {@link BatchSizer#rows()} rows or about {@code maxBytes} of parameters,
+ * so the driver never buffers a whole table. The transaction is still committed by the caller.
+ */
+final class BatchFlusher {
+	private final PreparedStatement stmt;
+	private final BatchSizer sizer;
+	private final long maxBytes;
+
+	private int rows;
+	private long bytes;
+
+	BatchFlusher(PreparedStatement stmt, BatchSizer sizer, long maxBytes) {
+		this.stmt = stmt;
+		this.sizer = sizer;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Adds the parameters currently set on the statement as a row of about {@code rowBytes}.
+	 */
+	void add(long rowBytes) throws SQLException {
+		stmt.addBatch();
+		++rows;
+		bytes += rowBytes;
+		if (rows >= sizer.rows() || bytes >= maxBytes) {
+			flush();
+		}
+	}
+
+	void flush() throws SQLException {
+		if (rows == 0) {
+			return;
+		}
+		long start = System.nanoTime();
+		stmt.executeBatch();
+		sizer.record(rows, System.nanoTime() - start);
+		rows = 0;
+		bytes = 0;
+	}
+
+	/**
+	 * Rough size of a string parameter held by the driver.
+	 */
+	static long bytesOf(String s) {
+		return s == null ? 0 : 2L * s.length();
+	}
+}
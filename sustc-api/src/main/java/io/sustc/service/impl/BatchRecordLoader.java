@@ -0,0 +1,200 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static io.sustc.service.impl.BatchFlusher.bytesOf;
+
+/**
+ * Loads records with {@link PreparedStatement#addBatch()}.
+ * <p>
+ * Rows are sent in batches whose size is tuned per table by a {@link BatchSizer}
+ * and capped by {@code maxBatchBytes}, see {@link BatchFlusher}.
+ */
+public class BatchRecordLoader implements RecordLoader {
+	private final int initialBatchRows;
+	private final long maxBatchBytes;
+	private final Map<String, BatchSizer> sizers = new ConcurrentHashMap<>();
+
+	public BatchRecordLoader(int initialBatchRows, long maxBatchBytes) {
+		this.initialBatchRows = initialBatchRows;
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	private BatchFlusher newBatch(String table, PreparedStatement stmt) {
+		return new BatchFlusher(stmt, sizers.computeIfAbsent(table, t -> new BatchSizer(initialBatchRows)), maxBatchBytes);
+	}
+
+	@Override
+	public void loadUsers(Connection conn, List<UserRecord> userRecords) throws SQLException {
+		String insertUserInfoSQL = "insert into user_info values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, true);";
+		// digest(?, 'sha256')
+		try (PreparedStatement stmt = conn.prepareStatement(insertUserInfoSQL)) {
+			BatchFlusher batch = newBatch("user_info", stmt);
+			for (UserRecord userRecord : userRecords) {
+				stmt.setLong(1, userRecord.getMid());
+				stmt.setString(2, userRecord.getName());
+				stmt.setString(3, userRecord.getSex());
+				stmt.setString(4, userRecord.getBirthday());
+				stmt.setShort(5, userRecord.getLevel());
+				stmt.setString(6, userRecord.getSign());
+				stmt.setString(7, userRecord.getIdentity().name().equals("USER") ? "USER" : "SUPER");
+				stmt.setString(8, userRecord.getPassword());
+				stmt.setString(9, userRecord.getQq());
+				stmt.setString(10, userRecord.getWechat());
+				stmt.setInt(11, userRecord.getCoin());
+				batch.add(64 + bytesOf(userRecord.getName()) + bytesOf(userRecord.getSign())
+					+ bytesOf(userRecord.getPassword()) + bytesOf(userRecord.getQq()) + bytesOf(userRecord.getWechat()));
+			}
+			batch.flush();
+		}
+	}
+
+	@Override
+	public void loadFollows(Connection conn, List<UserRecord> userRecords) throws SQLException {
+		String insertUserFollowSQL = "insert into user_follow values (?, ?);";
+		try (PreparedStatement stmt = conn.prepareStatement(insertUserFollowSQL)) {
+			BatchFlusher batch = newBatch("user_follow", stmt);
+			for (UserRecord userRecord : userRecords) {
+				stmt.setLong(2, userRecord.getMid());
+				for (Long starMid : userRecord.getFollowing()) {
+					stmt.setLong(1, starMid);
+					batch.add(16);
+				}
+			}
+			batch.flush();
+		}
+	}
+
+	@Override
+	public void loadVideos(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		String insertVideoInfoSQL = """
+insert into video_info (bv, title, ownMid, commitTime, revMid, reviewTime, publicTime, duration, descr)
+	values (?, ?, ?, ?, ?, ?, ?, ?, ?);
+			""";
+		try (PreparedStatement stmt = conn.prepareStatement(insertVideoInfoSQL)) {
+			BatchFlusher batch = newBatch("video_info", stmt);
+			for (VideoRecord videoRecord : videoRecords) {
+				stmt.setString(1, videoRecord.getBv());
+				stmt.setString(2, videoRecord.getTitle());
+				stmt.setLong(3, videoRecord.getOwnerMid());
+				stmt.setTimestamp(4, videoRecord.getCommitTime());
+				stmt.setLong(5, videoRecord.getReviewer());
+				stmt.setTimestamp(6, videoRecord.getReviewTime());
+				stmt.setTimestamp(7, videoRecord.getPublicTime());
+				stmt.setFloat(8, videoRecord.getDuration());
+				stmt.setString(9, videoRecord.getDescription());
+				batch.add(64 + bytesOf(videoRecord.getTitle()) + bytesOf(videoRecord.getDescription()));
+			}
+			batch.flush();
+		}
+	}
+
+	@Override
+	public void loadWatches(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		String insertUserWatchVideoSQL = "insert into user_watch_video values (?, ?, ?);";
+		try (PreparedStatement stmt = conn.prepareStatement(insertUserWatchVideoSQL)) {
+			BatchFlusher batch = newBatch("user_watch_video", stmt);
+			for (VideoRecord videoRecord : videoRecords) {
+				stmt.setString(2, videoRecord.getBv());
+				int viewerCnt = videoRecord.getViewerMids().length;
+				for (int i = 0; i < viewerCnt; i++) {
+					stmt.setLong(1, videoRecord.getViewerMids()[i]);
+					stmt.setFloat(3, videoRecord.getViewTime()[i]);
+					batch.add(16 + bytesOf(videoRecord.getBv()));
+				}
+			}
+			batch.flush();
+		}
+	}
+
+	@Override
+	public void loadCoins(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		String insertUserCoinVideoSQL = "insert into user_coin_video values (?, ?);";
+		try (PreparedStatement stmt = conn.prepareStatement(insertUserCoinVideoSQL)) {
+			BatchFlusher batch = newBatch("user_coin_video", stmt);
+			for (VideoRecord videoRecord : videoRecords) {
+				stmt.setString(2, videoRecord.getBv());
+				for (Long mid : videoRecord.getCoin()) {
+					stmt.setLong(1, mid);
+					batch.add(8 + bytesOf(videoRecord.getBv()));
+				}
+			}
+			batch.flush();
+		}
+	}
+
+	@Override
+	public void loadLikes(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		String insertUserLikeVideoSQL = "insert into user_like_video values (?, ?);";
+		try (PreparedStatement stmt = conn.prepareStatement(insertUserLikeVideoSQL)) {
+			BatchFlusher batch = newBatch("user_like_video", stmt);
+			for (VideoRecord videoRecord : videoRecords) {
+				stmt.setString(2, videoRecord.getBv());
+				for (Long mid : videoRecord.getLike()) {
+					stmt.setLong(1, mid);
+					batch.add(8 + bytesOf(videoRecord.getBv()));
+				}
+			}
+			batch.flush();
+		}
+	}
+
+	@Override
+	public void loadFavorites(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		String insertUserFavVideoSQL = "insert into user_fav_video values (?, ?);";
+		try (PreparedStatement stmt = conn.prepareStatement(insertUserFavVideoSQL)) {
+			BatchFlusher batch = newBatch("user_fav_video", stmt);
+			for (VideoRecord videoRecord : videoRecords) {
+				stmt.setString(2, videoRecord.getBv());
+				for (Long mid : videoRecord.getFavorite()) {
+					stmt.setLong(1, mid);
+					batch.add(8 + bytesOf(videoRecord.getBv()));
+				}
+			}
+			batch.flush();
+		}
+	}
+
+	@Override
+	public void loadDanmus(Connection conn, List<DanmuRecord> danmuRecords) throws SQLException {
+		String insertDanmuInfoSQL = "insert into danmu_info values (?, ?, ?, ?, ?, ?, true);";
+		try (PreparedStatement stmt = conn.prepareStatement(insertDanmuInfoSQL)) {
+			BatchFlusher batch = newBatch("danmu_info", stmt);
+			for (DanmuRecord danmuRecord : danmuRecords) {
+				stmt.setLong(1, danmuRecord.getDanmuId());
+				stmt.setString(2, danmuRecord.getBv());
+				stmt.setLong(3, danmuRecord.getMid());
+				stmt.setFloat(4, danmuRecord.getTime());
+				stmt.setString(5, danmuRecord.getContent());
+				stmt.setTimestamp(6, danmuRecord.getPostTime());
+				batch.add(32 + bytesOf(danmuRecord.getBv()) + bytesOf(danmuRecord.getContent()));
+			}
+			batch.flush();
+		}
+	}
+
+	@Override
+	public void loadDanmuLikes(Connection conn, List<DanmuRecord> danmuRecords) throws SQLException {
+		String insertUserLikeDanmuSQL = "insert into user_like_danmu values (?, ?);";
+		try (PreparedStatement stmt = conn.prepareStatement(insertUserLikeDanmuSQL)) {
+			BatchFlusher batch = newBatch("user_like_danmu", stmt);
+			for (DanmuRecord danmuRecord : danmuRecords) {
+				stmt.setLong(1, danmuRecord.getDanmuId());
+				for (Long mid : danmuRecord.getLikedBy()) {
+					stmt.setLong(2, mid);
+					batch.add(16);
+				}
+			}
+			batch.flush();
+		}
+	}
+}
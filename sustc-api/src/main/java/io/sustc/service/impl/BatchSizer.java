@@ -0,0 +1,53 @@
+package io.sustc.service.impl;
+
+/**
+ * Adapts the number of rows sent in one {@code executeBatch()} to the measured throughput.
+ * <p>
+ * Every {@value #WINDOW} batches the rows per second of the window are compared with the previous window,
+ * the batch size keeps growing (or shrinking) while that improves and turns around once it gets worse.
+ * One instance is shared by all workers loading the same table.
+ */
+public class BatchSizer {
+	private static final int WINDOW = 8;
+	private static final int MIN_ROWS = 100;
+	private static final int MAX_ROWS = 100000;
+
+	private int rows;
+	private boolean growing = true;
+	private double lastThroughput;
+
+	private int windowBatches;
+	private long windowRows;
+	private long windowNanos;
+
+	public BatchSizer(int initialRows) {
+		this.rows = Math.min(Math.max(initialRows, MIN_ROWS), MAX_ROWS);
+	}
+
+	/**
+	 * @return the current number of rows per batch
+	 */
+	public synchronized int rows() {
+		return rows;
+	}
+
+	/**
+	 * Records an executed batch of {@code batchRows} rows that took {@code nanos}.
+	 */
+	public synchronized void record(int batchRows, long nanos) {
+		windowRows += batchRows;
+		windowNanos += Math.max(nanos, 1);
+		if (++windowBatches < WINDOW) {
+			return;
+		}
+		double throughput = windowRows * 1e9 / windowNanos;
+		if (throughput < lastThroughput) {
+			growing = !growing;
+		}
+		lastThroughput = throughput;
+		rows = growing ? Math.min(rows + rows / 2, MAX_ROWS) : Math.max(rows * 2 / 3, MIN_ROWS);
+		windowBatches = 0;
+		windowRows = 0;
+		windowNanos = 0;
+	}
+}
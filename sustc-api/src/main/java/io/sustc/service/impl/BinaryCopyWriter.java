@@ -0,0 +1,202 @@
+package io.sustc.service.impl;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Encodes rows in the binary format of {@code COPY ... FROM STDIN (FORMAT binary)}
+ * and streams them to the server through the driver's {@link CopyIn}.
+ * <p>
+ * Values are written straight into a reusable byte buffer, which is handed to the
+ * driver whenever it fills up, so no per-row JDBC parameter objects are created.
+ * The writer is not thread-safe, use one per connection.
+ */
+public class BinaryCopyWriter implements AutoCloseable {
+	private static final byte[] HEADER = {
+		'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0,
+		0, 0, 0, 0, // flags
+		0, 0, 0, 0  // header extension length
+	};
+
+	private static final LocalDateTime PG_EPOCH = LocalDateTime.of(2000, 1, 1, 0, 0);
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final CopyIn copyIn;
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int pos = 0;
+
+	private BinaryCopyWriter(CopyIn copyIn) {
+		this.copyIn = copyIn;
+	}
+
+	/**
+	 * Starts a binary copy into {@code table}, the written fields shall follow the order of {@code columns}.
+	 */
+	public static BinaryCopyWriter open(Connection conn, String table, String columns) throws SQLException {
+		String copySQL = "copy " + table + " (" + columns + ") from stdin (format binary)";
+		BinaryCopyWriter writer = new BinaryCopyWriter(conn.unwrap(PGConnection.class).getCopyAPI().copyIn(copySQL));
+		writer.ensure(HEADER.length);
+		System.arraycopy(HEADER, 0, writer.buf, 0, HEADER.length);
+		writer.pos = HEADER.length;
+		return writer;
+	}
+
+	public void startRow(int fieldCount) throws SQLException {
+		ensure(2);
+		putShort((short) fieldCount);
+	}
+
+	public void writeNull() throws SQLException {
+		ensure(4);
+		putInt(-1);
+	}
+
+	public void writeBoolean(boolean value) throws SQLException {
+		ensure(5);
+		putInt(1);
+		buf[pos++] = (byte) (value ? 1 : 0);
+	}
+
+	public void writeShort(short value) throws SQLException {
+		ensure(6);
+		putInt(2);
+		putShort(value);
+	}
+
+	public void writeInt(int value) throws SQLException {
+		ensure(8);
+		putInt(4);
+		putInt(value);
+	}
+
+	public void writeLong(long value) throws SQLException {
+		ensure(12);
+		putInt(8);
+		putLong(value);
+	}
+
+	public void writeLong(Long value) throws SQLException {
+		if (value == null) {
+			writeNull();
+		} else {
+			writeLong(value.longValue());
+		}
+	}
+
+	public void writeDouble(double value) throws SQLException {
+		writeLong(Double.doubleToLongBits(value));
+	}
+
+	/**
+	 * Writes a {@code timestamp} (without time zone), interpreting {@code value} in the local time zone
+	 * just like {@link java.sql.PreparedStatement#setTimestamp(int, Timestamp)} does.
+	 */
+	public void writeTimestamp(Timestamp value) throws SQLException {
+		if (value == null) {
+			writeNull();
+			return;
+		}
+		writeLong(ChronoUnit.MICROS.between(PG_EPOCH, value.toLocalDateTime()));
+	}
+
+	/**
+	 * Writes a {@code text}, {@code varchar} or {@code char} field, encoded in UTF-8.
+	 */
+	public void writeText(String value) throws SQLException {
+		if (value == null) {
+			writeNull();
+			return;
+		}
+		int len = value.length();
+		ensure(4 + 3 * len);
+		int lenPos = pos;
+		pos += 4;
+		for (int i = 0; i < len; ++i) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xc0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buf[pos++] = (byte) (0xf0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else {
+				if (Character.isSurrogate(c)) {
+					c = '?';
+				}
+				buf[pos++] = (byte) (0xe0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		int byteLen = pos - lenPos - 4;
+		buf[lenPos] = (byte) (byteLen >>> 24);
+		buf[lenPos + 1] = (byte) (byteLen >>> 16);
+		buf[lenPos + 2] = (byte) (byteLen >>> 8);
+		buf[lenPos + 3] = (byte) byteLen;
+	}
+
+	/**
+	 * Writes the trailer and completes the copy.
+	 *
+	 * @return the number of rows copied
+	 */
+	public long finish() throws SQLException {
+		ensure(2);
+		putShort((short) -1);
+		flush();
+		return copyIn.endCopy();
+	}
+
+	@Override
+	public void close() throws SQLException {
+		if (copyIn.isActive()) {
+			copyIn.cancelCopy();
+		}
+	}
+
+	private void ensure(int size) throws SQLException {
+		if (pos + size <= buf.length) {
+			return;
+		}
+		flush();
+		if (size > buf.length) {
+			buf = new byte[Math.max(size, buf.length * 2)];
+		}
+	}
+
+	private void flush() throws SQLException {
+		if (pos > 0) {
+			copyIn.writeToCopy(buf, 0, pos);
+			pos = 0;
+		}
+	}
+
+	private void putShort(short v) {
+		buf[pos++] = (byte) (v >>> 8);
+		buf[pos++] = (byte) v;
+	}
+
+	private void putInt(int v) {
+		buf[pos++] = (byte) (v >>> 24);
+		buf[pos++] = (byte) (v >>> 16);
+		buf[pos++] = (byte) (v >>> 8);
+		buf[pos++] = (byte) v;
+	}
+
+	private void putLong(long v) {
+		putInt((int) (v >>> 32));
+		putInt((int) v);
+	}
+}
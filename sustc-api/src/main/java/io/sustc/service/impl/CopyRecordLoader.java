@@ -0,0 +1,162 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Loads records with binary {@code COPY}, see {@link BinaryCopyWriter}.
+ * <p>
+ * The field types written here shall match the column types in {@code sustc.sql} exactly,
+ * since the server does not coerce binary input.
+ */
+public class CopyRecordLoader implements RecordLoader {
+
+	@Override
+	public void loadUsers(Connection conn, List<UserRecord> userRecords) throws SQLException {
+		try (BinaryCopyWriter writer = BinaryCopyWriter.open(conn, "user_info",
+			"mid, name, sex, birthday, level, sign, identity, pwd, qqid, wxid, coin, active")) {
+			for (UserRecord userRecord : userRecords) {
+				writer.startRow(12);
+				writer.writeLong(userRecord.getMid());
+				writer.writeText(userRecord.getName());
+				writer.writeText(userRecord.getSex());
+				writer.writeText(userRecord.getBirthday());
+				writer.writeShort(userRecord.getLevel());
+				writer.writeText(userRecord.getSign());
+				writer.writeText(userRecord.getIdentity() == UserRecord.Identity.USER ? "USER" : "SUPER");
+				writer.writeText(userRecord.getPassword());
+				writer.writeText(userRecord.getQq());
+				writer.writeText(userRecord.getWechat());
+				writer.writeInt(userRecord.getCoin());
+				writer.writeBoolean(true);
+			}
+			writer.finish();
+		}
+	}
+
+	@Override
+	public void loadFollows(Connection conn, List<UserRecord> userRecords) throws SQLException {
+		try (BinaryCopyWriter writer = BinaryCopyWriter.open(conn, "user_follow", "star_mid, fan_mid")) {
+			for (UserRecord userRecord : userRecords) {
+				for (long starMid : userRecord.getFollowing()) {
+					writer.startRow(2);
+					writer.writeLong(starMid);
+					writer.writeLong(userRecord.getMid());
+				}
+			}
+			writer.finish();
+		}
+	}
+
+	@Override
+	public void loadVideos(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		try (BinaryCopyWriter writer = BinaryCopyWriter.open(conn, "video_info",
+			"bv, title, ownMid, commitTime, revMid, reviewTime, publicTime, duration, descr")) {
+			for (VideoRecord videoRecord : videoRecords) {
+				writer.startRow(9);
+				writer.writeText(videoRecord.getBv());
+				writer.writeText(videoRecord.getTitle());
+				writer.writeLong(videoRecord.getOwnerMid());
+				writer.writeTimestamp(videoRecord.getCommitTime());
+				writer.writeLong(videoRecord.getReviewer());
+				writer.writeTimestamp(videoRecord.getReviewTime());
+				writer.writeTimestamp(videoRecord.getPublicTime());
+				writer.writeDouble(videoRecord.getDuration());
+				writer.writeText(videoRecord.getDescription());
+			}
+			writer.finish();
+		}
+	}
+
+	@Override
+	public void loadWatches(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		try (BinaryCopyWriter writer = BinaryCopyWriter.open(conn, "user_watch_video", "mid, bv, lastpos")) {
+			for (VideoRecord videoRecord : videoRecords) {
+				long[] viewerMids = videoRecord.getViewerMids();
+				float[] viewTime = videoRecord.getViewTime();
+				for (int i = 0; i < viewerMids.length; i++) {
+					writer.startRow(3);
+					writer.writeLong(viewerMids[i]);
+					writer.writeText(videoRecord.getBv());
+					writer.writeDouble(viewTime[i]);
+				}
+			}
+			writer.finish();
+		}
+	}
+
+	@Override
+	public void loadCoins(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		try (BinaryCopyWriter writer = BinaryCopyWriter.open(conn, "user_coin_video", "mid, bv")) {
+			for (VideoRecord videoRecord : videoRecords) {
+				writeMidBv(writer, videoRecord.getCoin(), videoRecord.getBv());
+			}
+			writer.finish();
+		}
+	}
+
+	@Override
+	public void loadLikes(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		try (BinaryCopyWriter writer = BinaryCopyWriter.open(conn, "user_like_video", "mid, bv")) {
+			for (VideoRecord videoRecord : videoRecords) {
+				writeMidBv(writer, videoRecord.getLike(), videoRecord.getBv());
+			}
+			writer.finish();
+		}
+	}
+
+	@Override
+	public void loadFavorites(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
+		try (BinaryCopyWriter writer = BinaryCopyWriter.open(conn, "user_fav_video", "mid, bv")) {
+			for (VideoRecord videoRecord : videoRecords) {
+				writeMidBv(writer, videoRecord.getFavorite(), videoRecord.getBv());
+			}
+			writer.finish();
+		}
+	}
+
+	@Override
+	public void loadDanmus(Connection conn, List<DanmuRecord> danmuRecords) throws SQLException {
+		try (BinaryCopyWriter writer = BinaryCopyWriter.open(conn, "danmu_info",
+			"danmu_id, bv, senderMid, showTime, content, postTime, active")) {
+			for (DanmuRecord danmuRecord : danmuRecords) {
+				writer.startRow(7);
+				writer.writeLong(danmuRecord.getDanmuId());
+				writer.writeText(danmuRecord.getBv());
+				writer.writeLong(danmuRecord.getMid());
+				writer.writeDouble(danmuRecord.getTime());
+				writer.writeText(danmuRecord.getContent());
+				writer.writeTimestamp(danmuRecord.getPostTime());
+				writer.writeBoolean(true);
+			}
+			writer.finish();
+		}
+	}
+
+	@Override
+	public void loadDanmuLikes(Connection conn, List<DanmuRecord> danmuRecords) throws SQLException {
+		try (BinaryCopyWriter writer = BinaryCopyWriter.open(conn, "user_like_danmu", "danmu_id, mid")) {
+			for (DanmuRecord danmuRecord : danmuRecords) {
+				for (long mid : danmuRecord.getLikedBy()) {
+					writer.startRow(2);
+					writer.writeLong(danmuRecord.getDanmuId());
+					writer.writeLong(mid);
+				}
+			}
+			writer.finish();
+		}
+	}
+
+	private static void writeMidBv(BinaryCopyWriter writer, long[] mids, String bv) throws SQLException {
+		for (long mid : mids) {
+			writer.startRow(2);
+			writer.writeLong(mid);
+			writer.writeText(bv);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package io.sustc.service.impl;
+
+import io.sustc.service.DanmuListener;
+import io.sustc.service.DanmuSubscription;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pushes the danmus sent to a video to its subscribers, for {@link DanmuServiceImpl#subscribe}.
+ * <p>
+ * A video with subscribers has a ring buffer of the last {@code sustc.danmu.subscription-buffer} danmus.
+ * A sender claims a sequence number, stores the danmu in its slot and wakes up the subscribers, without any lock.
+ * Every subscriber reads the ring at its own pace, so a slow listener never holds up the sender. The listeners
+ * are called directly on the {@code sustc.danmu.delivery-threads} shared threads, each subscriber yielding its
+ * thread after a batch of danmus, so a listener that is merely slow only delays the others, but one
+ * that blocks takes a delivery thread away from all of them while it blocks. Listeners must therefore not block,
+ * as {@link DanmuListener} states. A subscriber lapped by the senders skips to the oldest danmu still in the
+ * ring and is told how many it missed.
+ */
+@Component
+@Slf4j
+public class DanmuFanout {
+	@Value("${sustc.danmu.subscription-buffer:1024}")
+	private int bufferSize = 1024;
+
+	@Value("${sustc.danmu.delivery-threads:2}")
+	private int deliveryThreads = 2;
+
+	/**
+	 * Danmus delivered by a subscriber before it yields the thread to the others.
+	 */
+	private static final int DELIVERY_BATCH = 256;
+
+	private static final class Danmu {
+		final long seq;
+		final long id;
+		final String content;
+		final float time;
+
+		Danmu(long seq, long id, String content, float time) {
+			this.seq = seq;
+			this.id = id;
+			this.content = content;
+			this.time = time;
+		}
+	}
+
+	private final class Channel {
+		final String bv;
+		final AtomicReferenceArray<Danmu> ring = new AtomicReferenceArray<>(capacity);
+		final AtomicLong next = new AtomicLong();
+		final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+		Channel(String bv) {
+			this.bv = bv;
+		}
+
+		void publish(long id, String content, float time) {
+			long seq = next.getAndIncrement();
+			ring.set(slotOf(seq), new Danmu(seq, id, content, time));
+			for (Subscriber subscriber : subscribers) {
+				subscriber.signal();
+			}
+		}
+
+		/**
+		 * @return whether the danmu {@code seq} has been stored, or overwritten already
+		 */
+		boolean published(long seq) {
+			Danmu danmu = ring.get(slotOf(seq));
+			return danmu != null && danmu.seq >= seq;
+		}
+	}
+
+	private final class Subscriber implements DanmuSubscription, Runnable {
+		final Channel channel;
+		final DanmuListener listener;
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		volatile boolean closed;
+
+		/**
+		 * The next danmu to deliver, only accessed by the delivery task, which runs at most once at a time.
+		 */
+		long readSeq;
+
+		Subscriber(Channel channel, DanmuListener listener, long readSeq) {
+			this.channel = channel;
+			this.listener = listener;
+			this.readSeq = readSeq;
+		}
+
+		void signal() {
+			if (!closed && scheduled.compareAndSet(false, true)) {
+				executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			do {
+				if (deliver()) {
+					executor.execute(this);
+					return;
+				}
+				scheduled.set(false);
+			} while (!closed && channel.published(readSeq) && scheduled.compareAndSet(false, true));
+		}
+
+		/**
+		 * @return whether more danmus are waiting after a full batch
+		 */
+		private boolean deliver() {
+			for (int delivered = 0; delivered < DELIVERY_BATCH; ) {
+				if (closed) {
+					return false;
+				}
+				Danmu danmu = channel.ring.get(slotOf(readSeq));
+				if (danmu == null || danmu.seq < readSeq) {
+					return false;
+				}
+				if (danmu.seq > readSeq) {
+					long oldest = Math.max(readSeq + 1, channel.next.get() - capacity);
+					notify(() -> listener.onMissed(oldest - readSeq));
+					readSeq = oldest;
+					continue;
+				}
+				notify(() -> listener.onDanmu(danmu.id, channel.bv, danmu.content, danmu.time));
+				++readSeq;
+				++delivered;
+			}
+			return true;
+		}
+
+		private void notify(Runnable call) {
+			try {
+				call.run();
+			} catch (RuntimeException e) {
+				log.warn("Danmu listener of {} failed: {}", channel.bv, e.toString());
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			channels.computeIfPresent(channel.bv, (bv, current) -> {
+				current.subscribers.remove(this);
+				return current.subscribers.isEmpty() ? null : current;
+			});
+		}
+	}
+
+	private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+	private int capacity;
+
+	private ExecutorService executor;
+
+	@PostConstruct
+	public void start() {
+		capacity = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+		AtomicInteger threads = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(Math.max(deliveryThreads, 1), r -> {
+			Thread thread = new Thread(r, "danmu-delivery-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@PreDestroy
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Registers a listener for the danmus sent to the video from now on.
+	 */
+	public DanmuSubscription subscribe(String bv, DanmuListener listener) {
+		Subscriber[] subscriber = new Subscriber[1];
+		channels.compute(bv, (key, channel) -> {
+			if (channel == null) {
+				channel = new Channel(key);
+			}
+			subscriber[0] = new Subscriber(channel, listener, channel.next.get());
+			channel.subscribers.add(subscriber[0]);
+			return channel;
+		});
+		return subscriber[0];
+	}
+
+	/**
+	 * Pushes a danmu just sent to the subscribers of the video, if any.
+	 */
+	public void publish(String bv, long id, String content, float time) {
+		Channel channel = channels.get(bv);
+		if (channel != null) {
+			channel.publish(id, content, time);
+		}
+	}
+
+	private int slotOf(long seq) {
+		return (int) (seq & (capacity - 1));
+	}
+}
@@ -0,0 +1,250 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the danmus of {@link DanmuServiceImpl#sendDanmu} in batches.
+ * <p>
+ * Requests wait in a bounded queue. A sender waits up to {@code sustc.danmu.ingest.offer-timeout-ms} while it is
+ * full, then gets a future failed with a {@link RejectedExecutionException}, like the calls of {@link AsyncCalls}. Each of {@code sustc.danmu.ingest.workers}
+ * workers takes whatever is queued, up to {@code sustc.danmu.ingest.batch-size} requests, and sends them to
+ * {@code send_danmu_batch()} in one round trip: the senders are resolved through the {@link AuthCache}, so
+ * session tokens are accepted too, the videos and watch records are checked with joins, the ids are drawn from the danmu sequence and the rows are inserted
+ * with one statement. Once the batch is committed and its connection is back in the pool, the request futures
+ * complete with the inserted danmus, post time included, so that their callbacks need no query of their own.
+ * <p>
+ * The commit waits for the WAL flush according to {@code sustc.danmu.ingest.synchronous-commit}. A batch that
+ * fails as a whole is retried one request at a time through {@code send_danmu_by_mid()}, so one bad request cannot
+ * reject the others.
+ */
+@Component
+@Slf4j
+public class DanmuIngest {
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private AuthCache authCache;
+
+	@Value("${sustc.danmu.ingest.enabled:true}")
+	private boolean enabled = true;
+
+	@Value("${sustc.danmu.ingest.queue-size:8192}")
+	private int queueSize = 8192;
+
+	@Value("${sustc.danmu.ingest.offer-timeout-ms:1000}")
+	private long offerTimeoutMillis = 1000;
+
+	@Value("${sustc.danmu.ingest.batch-size:512}")
+	private int batchSize = 512;
+
+	@Value("${sustc.danmu.ingest.workers:2}")
+	private int workers = 2;
+
+	@Value("${sustc.danmu.ingest.synchronous-commit:on}")
+	private String synchronousCommit = "on";
+
+	private static final class Request {
+		final AuthInfo auth;
+		final String bv;
+		final String content;
+		final float time;
+		final CompletableFuture<SentDanmu> result = new CompletableFuture<>();
+
+		Request(AuthInfo auth, String bv, String content, float time) {
+			this.auth = auth;
+			this.bv = bv;
+			this.content = content;
+			this.time = time;
+		}
+	}
+
+	private BlockingQueue<Request> queue;
+
+	private ExecutorService pool;
+
+	private volatile boolean running;
+
+	@PostConstruct
+	public void start() {
+		if (!enabled) {
+			return;
+		}
+		queue = new ArrayBlockingQueue<>(queueSize);
+		running = true;
+		AtomicInteger threads = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(Math.max(workers, 1), r -> {
+			Thread thread = new Thread(r, "danmu-ingest-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < Math.max(workers, 1); ++i) {
+			pool.execute(this::work);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (pool == null) {
+			return;
+		}
+		running = false;
+		pool.shutdownNow();
+		List<Request> left = new ArrayList<>();
+		queue.drainTo(left);
+		left.forEach(it -> it.result.complete(null));
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Queues a danmu, waiting up to {@code sustc.danmu.ingest.offer-timeout-ms} while the queue is full.
+	 *
+	 * @return the inserted danmu, or {@code null} if the danmu was rejected; failed with a
+	 * {@link RejectedExecutionException} if the queue stayed full
+	 */
+	public CompletableFuture<SentDanmu> submit(AuthInfo auth, String bv, String content, float time) {
+		Request request = new Request(auth, bv, content, time);
+		try {
+			if (!running || auth == null) {
+				request.result.complete(null);
+			} else if (!queue.offer(request, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				request.result.completeExceptionally(
+					new RejectedExecutionException(queueSize + " danmus are already queued"));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			request.result.completeExceptionally(new RejectedExecutionException(e));
+		}
+		return request.result;
+	}
+
+	private void work() {
+		List<Request> batch = new ArrayList<>(batchSize);
+		while (running) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, batchSize - 1);
+			try {
+				send(batch);
+			} catch (RuntimeException e) {
+				log.error("Danmu batch failed: {}", e.toString());
+				batch.forEach(it -> it.result.complete(null));
+			}
+			batch.clear();
+		}
+	}
+
+	private void send(List<Request> batch) {
+		int n = batch.size();
+		Long[] mids = new Long[n];
+		String[] bvs = new String[n];
+		String[] contents = new String[n];
+		Double[] showTimes = new Double[n];
+		for (int i = 0; i < n; ++i) {
+			Request request = batch.get(i);
+			bvs[i] = request.bv;
+			contents[i] = request.content;
+			showTimes[i] = (double) request.time;
+		}
+
+		// now() is the post time of every danmu inserted by the transaction
+		String sendDanmuBatchSQL = "select send_danmu_batch(?, ?, ?, ?), now()";
+		SentDanmu[] sent = new SentDanmu[n];
+		try (Connection conn = dataSource.getConnection()) {
+			for (int i = 0; i < n; ++i) {
+				mids[i] = authCache.resolve(conn, batch.get(i).auth);
+			}
+			conn.setAutoCommit(false);
+			try {
+				try (Statement stmt = conn.createStatement()) {
+					stmt.execute("set local synchronous_commit = '" + synchronousCommit + "'");
+				}
+				Long[] ids;
+				Timestamp postTime;
+				try (PreparedStatement stmt = conn.prepareStatement(sendDanmuBatchSQL)) {
+					stmt.setArray(1, conn.createArrayOf("bigint", mids));
+					stmt.setArray(2, conn.createArrayOf("varchar", bvs));
+					stmt.setArray(3, conn.createArrayOf("text", contents));
+					stmt.setArray(4, conn.createArrayOf("float8", showTimes));
+					try (ResultSet rs = stmt.executeQuery()) {
+						rs.next();
+						Array array = rs.getArray(1);
+						ids = (Long[]) array.getArray();
+						postTime = rs.getTimestamp(2);
+					}
+				}
+				conn.commit();
+				for (int i = 0; i < n; ++i) {
+					sent[i] = sentDanmu(ids[i], mids[i], batch.get(i), postTime);
+				}
+			} catch (SQLException e) {
+				conn.rollback();
+				log.warn("Danmu batch of {} failed, sending one by one: {}", n, e.getMessage());
+				conn.setAutoCommit(true);
+				for (int i = 0; i < n; ++i) {
+					sent[i] = sendOne(conn, mids[i], batch.get(i));
+				}
+			} finally {
+				conn.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+		}
+		// the callbacks run on this worker, not while it holds a connection
+		for (int i = 0; i < n; ++i) {
+			batch.get(i).result.complete(sent[i]);
+		}
+	}
+
+	private static SentDanmu sentDanmu(long id, long mid, Request request, Timestamp postTime) {
+		return id < 0 ? null : new SentDanmu(id, request.bv, mid, request.time, request.content, postTime);
+	}
+
+	private SentDanmu sendOne(Connection conn, long mid, Request request) {
+		String sendDanmuSQL = "select send_danmu_by_mid(?, ?, ?, ?), now()";
+		try (PreparedStatement stmt = conn.prepareStatement(sendDanmuSQL)) {
+			stmt.setLong(1, mid);
+			stmt.setString(2, request.bv);
+			stmt.setString(3, request.content);
+			stmt.setFloat(4, request.time);
+			try (ResultSet rs = stmt.executeQuery()) {
+				rs.next();
+				return sentDanmu(rs.getLong(1), mid, request, rs.getTimestamp(2));
+			}
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,649 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The active danmus appended to memory-mapped segment files, from which {@link DanmuTimeIndex} loads a video
+ * without reading {@code danmu_info}. Enabled by {@code sustc.danmu.log.dir}.
+ * <p>
+ * A segment is a file of {@code sustc.danmu.log.segment-bytes} mapped at once, holding length-prefixed records:
+ * a danmu, or a tombstone for a deleted video or sender, which is how the soft deletes of {@code danmu_info}
+ * are replayed. The positions of the danmus of every video are kept in memory, so a video is read by following
+ * its own positions. A record is written before its length, so a torn record at the end of the last
+ * segment is ignored when the segments are replayed on start.
+ * <p>
+ * {@code danmu_info} stays the source of truth. The log is checked against it on start and rebuilt from it after
+ * an import, in the background. Danmus sent meanwhile are held back and appended once the rebuild has caught up;
+ * until then the index loads from {@code danmu_info} as before.
+ * <p>
+ * With {@code sustc.danmu.log.force}, the appended records are flushed to disk by a thread of their own, once for
+ * all records appended while the previous flush was running, so that a sender never waits for the disk.
+ */
+@Component
+@Slf4j
+public class DanmuLog {
+	@Autowired
+	private DataSource dataSource;
+
+	@Value("${sustc.danmu.log.dir:}")
+	private String dir = "";
+
+	@Value("${sustc.danmu.log.segment-bytes:67108864}")
+	private int segmentBytes = 64 << 20;
+
+	@Value("${sustc.danmu.log.force:false}")
+	private boolean force = false;
+
+	private static final byte DANMU = 1;
+	private static final byte VIDEO_DELETED = 2;
+	private static final byte SENDER_DELETED = 3;
+
+	/**
+	 * Offsets of the danmu fields from the start of a record: length, type, id, sender, show time, post time, bv.
+	 */
+	private static final int TYPE = 4;
+	private static final int ID = 5;
+	private static final int SENDER = 13;
+	private static final int SHOW_TIME = 21;
+	private static final int POST_TIME = 25;
+	private static final int BV = 33;
+
+	/**
+	 * Positions of the danmus of one video, {@code segment << 32 | offset}. A holder is never modified once
+	 * published, a newer one may share the array and use more of it.
+	 */
+	private static final class Positions {
+		final long[] positions;
+		final int count;
+
+		Positions(long[] positions, int count) {
+			this.positions = positions;
+			this.count = count;
+		}
+
+		Positions with(long position) {
+			long[] array = positions;
+			if (count == array.length) {
+				array = new long[Math.max(count * 2, 8)];
+				System.arraycopy(positions, 0, array, 0, count);
+			}
+			array[count] = position;
+			return new Positions(array, count + 1);
+		}
+	}
+
+	/**
+	 * Receives the danmus of a video read from the log.
+	 */
+	@FunctionalInterface
+	interface DanmuConsumer {
+		void accept(long id, float showTime, String content, long postTime);
+	}
+
+	private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+	private final Map<String, Positions> videos = new ConcurrentHashMap<>();
+	private final Set<String> deletedVideos = ConcurrentHashMap.newKeySet();
+	private final Set<Long> deletedSenders = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * End of the records in the last segment, guarded by this.
+	 */
+	private int writeOffset;
+
+	/**
+	 * Segment and offset up to which the records were flushed, guarded by this.
+	 */
+	private int flushedSegment;
+	private int flushedOffset;
+
+	/**
+	 * Whether a flush was requested and has not started yet, guarded by this.
+	 */
+	private boolean flushPending;
+
+	/**
+	 * Records held back while rebuilding, guarded by this.
+	 */
+	private List<byte[]> pending;
+
+	private volatile boolean ready;
+
+	/**
+	 * Bumped by every {@link #rebuild()}, a rebuild of an older generation gives up.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	private Path path;
+
+	private ExecutorService rebuilder;
+
+	private ExecutorService flusher;
+
+	@PostConstruct
+	public void start() {
+		if (!isEnabled()) {
+			return;
+		}
+		path = Paths.get(dir);
+		rebuilder = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "danmu-log-rebuild");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "danmu-log-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			Files.createDirectories(path);
+			replay();
+		} catch (IOException | RuntimeException e) {
+			log.warn("Cannot replay the danmu log in {}: {}", path, e.toString());
+			rebuild();
+			return;
+		}
+		long startGeneration = generation.get();
+		rebuilder.execute(() -> {
+			if (generation.get() == startGeneration && !matchesDatabase()) {
+				rebuild();
+			} else if (generation.get() == startGeneration) {
+				ready = true;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (rebuilder != null) {
+			rebuilder.shutdownNow();
+			flusher.shutdownNow();
+		}
+		synchronized (this) {
+			segments.forEach(MappedByteBuffer::force);
+		}
+	}
+
+	public boolean isEnabled() {
+		return dir != null && !dir.isEmpty();
+	}
+
+	/**
+	 * Passes the active danmus of the video to {@code consumer}, sorted by show time and id, with their post times
+	 * in microseconds.
+	 *
+	 * @return whether the danmus were passed, {@code false} if the log is not available
+	 */
+	public boolean danmus(String bv, DanmuConsumer consumer) {
+		long readGeneration = generation.get();
+		if (!ready || bv == null) {
+			return false;
+		}
+		List<MappedByteBuffer> snapshot = List.copyOf(segments);
+		Positions positions = videos.get(bv);
+		List<long[]> active = new ArrayList<>();
+		String[] contents;
+		long[] postTimes;
+		try {
+			for (int i = 0; positions != null && i < positions.count; ++i) {
+				MappedByteBuffer segment = snapshot.get((int) (positions.positions[i] >>> 32));
+				int offset = (int) positions.positions[i];
+				if (!deletedSenders.contains(segment.getLong(offset + SENDER))) {
+					active.add(new long[]{segment.getInt(offset + SHOW_TIME), segment.getLong(offset + ID),
+						positions.positions[i]});
+				}
+			}
+			active.sort((x, y) -> {
+				int byTime = Float.compare(Float.intBitsToFloat((int) x[0]), Float.intBitsToFloat((int) y[0]));
+				return byTime != 0 ? byTime : Long.compare(x[1], y[1]);
+			});
+			contents = new String[active.size()];
+			postTimes = new long[active.size()];
+			for (int i = 0; i < contents.length; ++i) {
+				contents[i] = contentOf(snapshot, active.get(i)[2]);
+				postTimes[i] = postTimeOf(snapshot, active.get(i)[2]);
+			}
+		} catch (RuntimeException e) {
+			// the segments were dropped or rewritten by a rebuild while reading
+			return false;
+		}
+		if (!isCurrent(readGeneration)) {
+			return false;
+		}
+		for (int i = 0; i < contents.length; ++i) {
+			long[] danmu = active.get(i);
+			consumer.accept(danmu[1], Float.intBitsToFloat((int) danmu[0]), contents[i], postTimes[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether no rebuild started since {@code readGeneration} was read, so that the segments and the
+	 * positions read since then belong to the same log
+	 */
+	private boolean isCurrent(long readGeneration) {
+		return ready && generation.get() == readGeneration;
+	}
+
+	/**
+	 * Appends a danmu just sent.
+	 */
+	public void danmuSent(SentDanmu danmu) {
+		if (isEnabled()) {
+			append(danmuRecord(danmu.id, danmu.bv, danmu.senderMid, danmu.showTime, danmu.content, danmu.postTime));
+		}
+	}
+
+	public void videoDeleted(String bv) {
+		if (isEnabled()) {
+			append(videoDeletedRecord(bv));
+		}
+	}
+
+	/**
+	 * Records that the danmus of the user and those on the user's videos were deactivated.
+	 */
+	public void accountDeleted(long mid) {
+		if (!isEnabled()) {
+			return;
+		}
+		try (Connection conn = dataSource.getConnection();
+		     PreparedStatement stmt = conn.prepareStatement("select bv from video_info where ownMid = ?")) {
+			stmt.setLong(1, mid);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					append(videoDeletedRecord(rs.getString(1)));
+				}
+			}
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+			rebuild();
+			return;
+		}
+		byte[] record = new byte[TYPE + 9];
+		record[TYPE] = SENDER_DELETED;
+		putLong(record, ID, mid);
+		append(record);
+	}
+
+	/**
+	 * Rebuilds the log from {@code danmu_info} in the background, after the data was replaced.
+	 */
+	public void rebuild() {
+		if (!isEnabled()) {
+			return;
+		}
+		long rebuildGeneration;
+		synchronized (this) {
+			ready = false;
+			rebuildGeneration = generation.incrementAndGet();
+			pending = new ArrayList<>();
+		}
+		rebuilder.execute(() -> rebuild(rebuildGeneration));
+	}
+
+	private void rebuild(long rebuildGeneration) {
+		if (generation.get() != rebuildGeneration) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		String danmuSQL = "select danmu_id, bv, senderMid, showTime, content, postTime from danmu_active order by danmu_id";
+		try (Connection conn = dataSource.getConnection()) {
+			synchronized (this) {
+				reset();
+			}
+			conn.setAutoCommit(false);
+			try (PreparedStatement stmt = conn.prepareStatement(danmuSQL)) {
+				stmt.setFetchSize(4096);
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						if (generation.get() != rebuildGeneration) {
+							return;
+						}
+						byte[] record = danmuRecord(rs.getLong(1), rs.getString(2), rs.getLong(3), rs.getFloat(4),
+							rs.getString(5), rs.getTimestamp(6));
+						synchronized (this) {
+							write(record);
+						}
+					}
+				}
+			} finally {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} catch (SQLException | IOException | UncheckedIOException e) {
+			log.error("Cannot rebuild the danmu log: {}", e.toString());
+			return;
+		}
+		synchronized (this) {
+			if (generation.get() != rebuildGeneration) {
+				return;
+			}
+			try {
+				for (byte[] record : pending) {
+					if (record[TYPE] != DANMU || !contains(bvOf(record), getLong(record, ID))) {
+						write(record);
+					}
+				}
+			} catch (IOException e) {
+				log.error("Cannot rebuild the danmu log: {}", e.toString());
+				return;
+			}
+			pending = null;
+			ready = true;
+			requestFlush();
+		}
+		log.info("Rebuilt the danmu log in {} ms", System.currentTimeMillis() - start);
+	}
+
+	private boolean matchesDatabase() {
+		long count = 0;
+		long maxId = 0;
+		for (Map.Entry<String, Positions> video : videos.entrySet()) {
+			if (deletedVideos.contains(video.getKey())) {
+				continue;
+			}
+			Positions positions = video.getValue();
+			for (int i = 0; i < positions.count; ++i) {
+				MappedByteBuffer segment = segments.get((int) (positions.positions[i] >>> 32));
+				int offset = (int) positions.positions[i];
+				if (!deletedSenders.contains(segment.getLong(offset + SENDER))) {
+					++count;
+					maxId = Math.max(maxId, segment.getLong(offset + ID));
+				}
+			}
+		}
+		String countSQL = "select count(*), coalesce(max(danmu_id), 0) from danmu_active";
+		try (Connection conn = dataSource.getConnection();
+		     PreparedStatement stmt = conn.prepareStatement(countSQL);
+		     ResultSet rs = stmt.executeQuery()) {
+			rs.next();
+			boolean matches = rs.getLong(1) == count && rs.getLong(2) == maxId;
+			if (!matches) {
+				log.info("Danmu log has {} danmus up to {}, the database {} up to {}",
+					count, maxId, rs.getLong(1), rs.getLong(2));
+			}
+			return matches;
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+			return false;
+		}
+	}
+
+	private synchronized void append(byte[] record) {
+		if (pending != null) {
+			pending.add(record);
+			return;
+		}
+		try {
+			write(record);
+		} catch (IOException e) {
+			log.error("Cannot append to the danmu log: {}", e.toString());
+			ready = false;
+			return;
+		}
+		requestFlush();
+	}
+
+	/**
+	 * Has the records appended so far flushed, the caller holds the lock.
+	 */
+	private void requestFlush() {
+		if (force && !flushPending) {
+			flushPending = true;
+			flusher.execute(this::flush);
+		}
+	}
+
+	/**
+	 * Forces the records appended since the last flush to disk, outside the lock so that appends go on meanwhile.
+	 */
+	private void flush() {
+		List<MappedByteBuffer> dirty = new ArrayList<>();
+		int from;
+		int to;
+		synchronized (this) {
+			flushPending = false;
+			if (segments.isEmpty()) {
+				return;
+			}
+			for (int i = Math.min(flushedSegment, segments.size() - 1); i < segments.size(); ++i) {
+				dirty.add(segments.get(i));
+			}
+			from = flushedSegment < segments.size() ? flushedOffset : 0;
+			to = writeOffset;
+			flushedSegment = segments.size() - 1;
+			flushedOffset = writeOffset;
+		}
+		try {
+			for (int i = 0; i < dirty.size(); ++i) {
+				MappedByteBuffer segment = dirty.get(i);
+				int start = i == 0 ? from : 0;
+				int end = i == dirty.size() - 1 ? to : segment.capacity();
+				if (end > start) {
+					segment.force(start, end - start);
+				}
+			}
+		} catch (UncheckedIOException e) {
+			log.error("Cannot flush the danmu log: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Writes and indexes a record, the caller holds the lock.
+	 */
+	private void write(byte[] record) throws IOException {
+		MappedByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || segment.capacity() - writeOffset < record.length) {
+			segment = newSegment(Math.max(segmentBytes, record.length + 4));
+			writeOffset = 0;
+		}
+		segment.put(writeOffset + 4, record, 4, record.length - 4);
+		segment.putInt(writeOffset, record.length - 4);
+		index(segments.size() - 1, segment, writeOffset);
+		writeOffset += record.length;
+	}
+
+	private void index(int segmentIndex, MappedByteBuffer segment, int offset) {
+		byte type = segment.get(offset + TYPE);
+		if (type == DANMU) {
+			String bv = readString(segment, offset + BV);
+			long position = (long) segmentIndex << 32 | offset;
+			Positions positions = videos.get(bv);
+			videos.put(bv, positions == null ? new Positions(new long[]{position}, 1) : positions.with(position));
+		} else if (type == VIDEO_DELETED) {
+			String bv = readString(segment, offset + ID);
+			deletedVideos.add(bv);
+			videos.remove(bv);
+		} else if (type == SENDER_DELETED) {
+			deletedSenders.add(segment.getLong(offset + ID));
+		}
+	}
+
+	private void replay() throws IOException {
+		List<Path> files;
+		try (Stream<Path> list = Files.list(path)) {
+			files = list.filter(it -> it.getFileName().toString().matches("danmu-\\d+\\.log")).sorted().collect(Collectors.toList());
+		}
+		synchronized (this) {
+			for (Path file : files) {
+				MappedByteBuffer segment = map(file, Files.size(file));
+				segments.add(segment);
+				int offset = 0;
+				while (segment.capacity() - offset > 4) {
+					int length = segment.getInt(offset);
+					if (length <= 0 || length > segment.capacity() - offset - 4) {
+						break;
+					}
+					index(segments.size() - 1, segment, offset);
+					offset += 4 + length;
+				}
+				writeOffset = offset;
+			}
+			flushedSegment = Math.max(segments.size() - 1, 0);
+			flushedOffset = writeOffset;
+		}
+		log.info("Replayed {} danmu log segments, {} videos", files.size(), videos.size());
+	}
+
+	/**
+	 * Drops every segment, the caller holds the lock.
+	 */
+	private void reset() throws IOException {
+		segments.clear();
+		videos.clear();
+		deletedVideos.clear();
+		deletedSenders.clear();
+		writeOffset = 0;
+		flushedSegment = 0;
+		flushedOffset = 0;
+		try (Stream<Path> list = Files.list(path)) {
+			for (Path file : list.collect(Collectors.toList())) {
+				if (file.getFileName().toString().matches("danmu-\\d+\\.log")) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	private MappedByteBuffer newSegment(int size) throws IOException {
+		MappedByteBuffer segment = map(path.resolve(String.format("danmu-%08d.log", segments.size())), size);
+		segments.add(segment);
+		return segment;
+	}
+
+	private static MappedByteBuffer map(Path file, long size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+		     FileChannel channel = raf.getChannel()) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	private boolean contains(String bv, long id) {
+		Positions positions = videos.get(bv);
+		if (positions == null) {
+			return false;
+		}
+		for (int i = positions.count - 1; i >= 0; --i) {
+			MappedByteBuffer segment = segments.get((int) (positions.positions[i] >>> 32));
+			if (segment.getLong((int) positions.positions[i] + ID) == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long postTimeOf(List<MappedByteBuffer> snapshot, long position) {
+		return snapshot.get((int) (position >>> 32)).getLong((int) position + POST_TIME);
+	}
+
+	private static String contentOf(List<MappedByteBuffer> snapshot, long position) {
+		MappedByteBuffer segment = snapshot.get((int) (position >>> 32));
+		int offset = (int) position + BV;
+		offset += 2 + segment.getShort(offset);
+		int length = segment.getInt(offset);
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		segment.get(offset + 4, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String readString(MappedByteBuffer segment, int offset) {
+		byte[] bytes = new byte[segment.getShort(offset)];
+		segment.get(offset + 2, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] danmuRecord(long id, String bv, long sender, float showTime, String content, Timestamp postTime) {
+		byte[] bvBytes = bv.getBytes(StandardCharsets.UTF_8);
+		byte[] contentBytes = content == null ? new byte[0] : content.getBytes(StandardCharsets.UTF_8);
+		byte[] record = new byte[BV + 2 + bvBytes.length + 4 + contentBytes.length];
+		record[TYPE] = DANMU;
+		putLong(record, ID, id);
+		putLong(record, SENDER, sender);
+		putInt(record, SHOW_TIME, Float.floatToIntBits(showTime));
+		putLong(record, POST_TIME, postTime == null ? Long.MIN_VALUE
+			: Math.floorDiv(postTime.getTime(), 1000) * 1_000_000 + postTime.getNanos() / 1000);
+		putShort(record, BV, bvBytes.length);
+		System.arraycopy(bvBytes, 0, record, BV + 2, bvBytes.length);
+		int offset = BV + 2 + bvBytes.length;
+		putInt(record, offset, content == null ? -1 : contentBytes.length);
+		System.arraycopy(contentBytes, 0, record, offset + 4, contentBytes.length);
+		return record;
+	}
+
+	private static byte[] videoDeletedRecord(String bv) {
+		byte[] bvBytes = bv.getBytes(StandardCharsets.UTF_8);
+		byte[] record = new byte[ID + 2 + bvBytes.length];
+		record[TYPE] = VIDEO_DELETED;
+		putShort(record, ID, bvBytes.length);
+		System.arraycopy(bvBytes, 0, record, ID + 2, bvBytes.length);
+		return record;
+	}
+
+	private static String bvOf(byte[] record) {
+		int length = (record[BV] & 0xff) << 8 | record[BV + 1] & 0xff;
+		return new String(record, BV + 2, length, StandardCharsets.UTF_8);
+	}
+
+	private static void putShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 8);
+		bytes[offset + 1] = (byte) value;
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		for (int i = 3; i >= 0; --i) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static void putLong(byte[] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; --i) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static long getLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; ++i) {
+			value = value << 8 | bytes[offset + i] & 0xff;
+		}
+		return value;
+	}
+}
@@ -1,9 +1,13 @@
 package io.sustc.service.impl;
 
 import io.sustc.dto.AuthInfo;
+import io.sustc.service.DanmuCursor;
+import io.sustc.service.DanmuListener;
 import io.sustc.service.DanmuService;
+import io.sustc.service.DanmuSubscription;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.sql.DataSource;
@@ -12,6 +16,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @Slf4j
@@ -19,6 +24,30 @@ public class DanmuServiceImpl implements DanmuService {
 	@Autowired
 	private DataSource dataSource;
 
+	@Autowired
+	private StatementDao statements;
+
+	@Autowired
+	private AuthCache authCache;
+
+	@Autowired
+	private PopularityLeaderboard leaderboard;
+
+	@Autowired
+	private DanmuTimeIndex danmuIndex;
+
+	@Autowired
+	private DanmuLog danmuLog;
+
+	@Autowired
+	private DanmuFanout fanout;
+
+	@Autowired
+	private DanmuIngest ingest;
+
+	@Value("${sustc.danmu.stream-fetch-size:4096}")
+	private int streamFetchSize = 4096;
+
 
 	/**
 	 * Sends a danmu to a video.
@@ -43,26 +72,74 @@ public class DanmuServiceImpl implements DanmuService {
 		if (content == null || content.isEmpty()) {
 			return -1;
 		}
-		String sendDanmuSQL = "select send_danmu(?, ?, ?, ?, ?, ?, ?)";
+		if (ingest.isEnabled()) {
+			CompletableFuture<Long> queued = sendDanmuAsync(auth, bv, content, time);
+			if (!queued.isCompletedExceptionally()) {
+				return queued.join();
+			}
+			// the queue stayed full, so the danmu is sent on this thread instead
+		}
+		// now() is the post time given by send_danmu_by_mid in the same transaction
+		String sendDanmuSQL = "select send_danmu_by_mid(?, ?, ?, ?), now()";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(sendDanmuSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setString(5, bv);
-			stmt.setString(6, content);
-			stmt.setFloat(7, time);
+		     PreparedStatement stmt = statements.prepare(conn, sendDanmuSQL)) {
+			long mid = authCache.resolve(conn, auth);
+			stmt.setLong(1, mid);
+			stmt.setString(2, bv);
+			stmt.setString(3, content);
+			stmt.setFloat(4, time);
+			SentDanmu sent;
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
-				return rs.getLong(1);
+				long danmuId = rs.getLong(1);
+				if (danmuId < 0) {
+					return danmuId;
+				}
+				sent = new SentDanmu(danmuId, bv, mid, time, content, rs.getTimestamp(2));
 			}
+			danmuSent(sent);
+			return sent.id;
 		} catch (SQLException e) {
 			log.error("SQL error: {}", e.getMessage());
 			return -1;
 		}
 	}
 
+	/**
+	 * Sends a danmu to a video through the batched ingest, without waiting for it.
+	 * The danmu is checked as in {@link #sendDanmu}.
+	 *
+	 * @param auth    the current user's authentication information
+	 * @param bv      the video's bv
+	 * @param content the content of danmu
+	 * @param time    seconds since the video starts
+	 * @return the generated danmu id once the danmu is committed, or {@code -1} in the corner cases of {@link #sendDanmu};
+	 * failed with a {@link java.util.concurrent.RejectedExecutionException} if the send queue stays full
+	 */
+	@Override
+	public CompletableFuture<Long> sendDanmuAsync(AuthInfo auth, String bv, String content, float time) {
+		if (content == null || content.isEmpty()) {
+			return CompletableFuture.completedFuture(-1L);
+		}
+		if (!ingest.isEnabled()) {
+			return CompletableFuture.completedFuture(sendDanmu(auth, bv, content, time));
+		}
+		return ingest.submit(auth, bv, content, time).thenApply(sent -> {
+			if (sent == null) {
+				return -1L;
+			}
+			danmuSent(sent);
+			return sent.id;
+		});
+	}
+
+	private void danmuSent(SentDanmu sent) {
+		leaderboard.recordEvent();
+		danmuIndex.add(sent);
+		danmuLog.danmuSent(sent);
+		fanout.publish(sent.bv, sent.id, sent.content, sent.showTime);
+	}
+
 	/**
 	 * Display the danmus in a time range.
 	 * Similar to bilibili's mechanism, user can choose to only display part of the danmus to have a better watching
@@ -90,9 +167,17 @@ public class DanmuServiceImpl implements DanmuService {
 		if (timeStart > timeEnd) {
 			return Collections.emptyList();
 		}
+		try {
+			List<Long> ids = danmuIndex.range(bv, timeStart, timeEnd, filter);
+			if (ids != null) {
+				return ids;
+			}
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+		}
 		String displayDanmuSQL = "select display_danmu(?, ?, ?, ?)";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(displayDanmuSQL)) {
+		     PreparedStatement stmt = statements.prepare(conn, displayDanmuSQL)) {
 			stmt.setString(1, bv);
 			stmt.setFloat(2, timeStart);
 			stmt.setFloat(3, timeEnd);
@@ -114,6 +199,130 @@ public class DanmuServiceImpl implements DanmuService {
 		}
 	}
 
+	/**
+	 * Displays the danmus in a time range, at most {@code limit} of them in every {@code window} seconds,
+	 * so that the result stays readable and bounded on busy videos.
+	 * The windows start at multiples of {@code window} since the video starts.
+	 *
+	 * @param bv        the video's bv
+	 * @param timeStart the start time of the range
+	 * @param timeEnd   the end time of the range
+	 * @param filter    whether to remove the duplicated content first, as in {@link #displayDanmu}
+	 * @param window    the length of a window in seconds
+	 * @param limit     the maximum number of danmus of a window
+	 * @param mostLiked whether to keep the most liked danmus of a window, otherwise the earliest posted ones
+	 * @return a list of danmus id, sorted by {@code time}
+	 * @apiNote In addition to the corner cases of {@link #displayDanmu}, {@code window} or {@code limit}
+	 * may not be positive. If any of the corner case happened, {@code null} shall be returned.
+	 */
+	@Override
+	public List<Long> displayDanmu(String bv, float timeStart, float timeEnd, boolean filter,
+	                               float window, int limit, boolean mostLiked) {
+		if (timeStart > timeEnd || window <= 0 || limit <= 0) {
+			return Collections.emptyList();
+		}
+		String displayDanmuSQL = "select display_danmu_capped(?, ?, ?, ?, ?, ?, ?)";
+		try (Connection conn = dataSource.getConnection();
+		     PreparedStatement stmt = statements.prepare(conn, displayDanmuSQL)) {
+			stmt.setString(1, bv);
+			stmt.setFloat(2, timeStart);
+			stmt.setFloat(3, timeEnd);
+			stmt.setBoolean(4, filter);
+			stmt.setFloat(5, window);
+			stmt.setInt(6, limit);
+			stmt.setBoolean(7, mostLiked);
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (rs.next() && rs.getArray(1) != null) {
+					return new ArrayList<>(Arrays.asList((Long[]) rs.getArray(1).getArray()));
+				}
+				return Collections.emptyList();
+			}
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Streams the danmus in a time range, for ranges too dense to be returned as a list.
+	 * The ids are the same as those of {@link #displayDanmu}, sorted by {@code time} and then by id.
+	 *
+	 * @param bv        the video's bv
+	 * @param timeStart the start time of the range
+	 * @param timeEnd   the end time of the range
+	 * @param filter    whether to remove the duplicated content, as in {@link #displayDanmu}
+	 * @return a cursor over the danmus id, which shall be closed by the caller
+	 * @apiNote If any of the corner cases of {@link #displayDanmu} happened, an empty cursor shall be returned.
+	 */
+	@Override
+	public DanmuCursor streamDanmu(String bv, float timeStart, float timeEnd, boolean filter) {
+		if (timeStart > timeEnd || timeStart < 0) {
+			return JdbcDanmuCursor.EMPTY;
+		}
+		String durationSQL = "select duration from video_active_super where bv = ?";
+		String streamDanmuSQL = filter ? """
+select danmu_id from (
+	select danmu_id, showTime, postTime, min(postTime) over (partition by content) as firstPosted
+		from danmu_active where bv = ? and showTime between ? and ?
+) as d where postTime = firstPosted
+	order by showTime, danmu_id;
+			""" : """
+select danmu_id from danmu_active where bv = ? and showTime between ? and ?
+	order by showTime, danmu_id;
+			""";
+		Connection conn = null;
+		try {
+			conn = dataSource.getConnection();
+			try (PreparedStatement durationStmt = conn.prepareStatement(durationSQL)) {
+				durationStmt.setString(1, bv);
+				try (ResultSet rs = durationStmt.executeQuery()) {
+					if (!rs.next() || timeEnd > rs.getFloat(1)) {
+						conn.close();
+						return JdbcDanmuCursor.EMPTY;
+					}
+				}
+			}
+			conn.setAutoCommit(false);
+			conn.setReadOnly(true);
+			PreparedStatement stmt = conn.prepareStatement(streamDanmuSQL);
+			stmt.setString(1, bv);
+			stmt.setFloat(2, timeStart);
+			stmt.setFloat(3, timeEnd);
+			return new JdbcDanmuCursor(conn, stmt, streamFetchSize);
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException ex) {
+					log.error("SQL error: {}", ex.getMessage());
+				}
+			}
+			return JdbcDanmuCursor.EMPTY;
+		}
+	}
+
+	/**
+	 * Subscribes to the danmus sent to a video from now on.
+	 * <p>
+	 * Each accepted {@link #sendDanmu} is pushed to the listeners of the video, without waiting for them.
+	 * A listener that falls behind by more than a bounded number of danmus misses the oldest ones,
+	 * see {@link DanmuListener#onMissed}. The listener shares the delivery threads with all the others, so it
+	 * must not block, see {@link DanmuListener}.
+	 *
+	 * @param bv       the video's bv
+	 * @param listener the listener to call
+	 * @return the subscription, which shall be closed by the caller
+	 */
+	@Override
+	public DanmuSubscription subscribe(String bv, DanmuListener listener) {
+		if (bv == null || listener == null) {
+			return () -> {
+			};
+		}
+		return fanout.subscribe(bv, listener);
+	}
+
 	/**
 	 * Likes a danmu.
 	 * If the user already liked the danmu, this operation will cancel the like status.
@@ -148,14 +357,11 @@ drop index if exists user_like_danmu_danmu_id_idx;
 			""";
 			DatabaseServiceImpl.startModify = true;
 		}
-		String likeDanmuSQL = "select like_danmu(?, ?, ?, ?, ?)";
+		String likeDanmuSQL = "select like_danmu_by_mid(?, ?)";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(likeDanmuSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setLong(5, id);
+		     PreparedStatement stmt = statements.prepare(conn, likeDanmuSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setLong(2, id);
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
 				return rs.getBoolean(1);
@@ -0,0 +1,401 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The active danmus of recently displayed videos, sorted by show time, for {@link DanmuServiceImpl#displayDanmu}.
+ * <p>
+ * Every video holds a {@code float[]} of show times and a parallel {@code long[]} of danmu ids, so a time range
+ * is two binary searches and a slice. A video is loaded on its first display, from the {@link DanmuLog} when it is
+ * enabled and ready or else from {@code danmu_active}, at most
+ * {@code sustc.danmu.index-max-videos} videos are kept. Every read stamps its video with the time, and a load that
+ * finds the index full evicts the least recently stamped eighth of the videos.
+ * <p>
+ * For the filtered display, every distinct content of a video is numbered once and each danmu carries the number
+ * of its content and its post time. Danmus whose content appears only once in the video are returned as they are,
+ * the others are compared with the earliest post time of their content within the range, so the filtered display
+ * visits the same slice as the unfiltered one.
+ * <p>
+ * A sent danmu is inserted into the arrays, which are replaced rather than modified so that readers
+ * never lock; only the changes are serialized. A deleted video is evicted, so are the videos a deleted account
+ * owned or sent danmus to, and an import drops everything.
+ * A load that overlaps such a change of the same video is answered but not kept.
+ */
+@Component
+@Slf4j
+public class DanmuTimeIndex {
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private DanmuLog danmuLog;
+
+	@Value("${sustc.danmu.index-max-videos:4096}")
+	private int maxVideos = 4096;
+
+	private static final int STRIPES = 64;
+
+	/**
+	 * Danmus of one video at some point in time, never modified once published.
+	 */
+	static final class VideoDanmus {
+		final float duration;
+		final float[] showTimes;
+		final long[] ids;
+		/**
+		 * Post times in microseconds.
+		 */
+		final long[] postTimes;
+		/**
+		 * Content number of every danmu, an index into {@link #contentCounts}.
+		 */
+		final int[] contents;
+		final int[] contentCounts;
+		/**
+		 * Numbers the contents, shared by all versions of the video and only accessed while holding the change lock.
+		 */
+		final Map<String, Integer> contentNumbers;
+
+		VideoDanmus(float duration, float[] showTimes, long[] ids, long[] postTimes, int[] contents,
+		            int[] contentCounts, Map<String, Integer> contentNumbers) {
+			this.duration = duration;
+			this.showTimes = showTimes;
+			this.ids = ids;
+			this.postTimes = postTimes;
+			this.contents = contents;
+			this.contentCounts = contentCounts;
+			this.contentNumbers = contentNumbers;
+		}
+
+		/**
+		 * @return the first index whose show time is not less than ({@code inclusive}) or greater than {@code time}
+		 */
+		int search(float time, boolean inclusive) {
+			int lo = 0;
+			int hi = showTimes.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (showTimes[mid] < time || (!inclusive && showTimes[mid] == time)) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * @return the danmus with one more, or this if the danmu is already present
+		 */
+		VideoDanmus with(long id, float showTime, String content, long postTime) {
+			int at = search(showTime, false);
+			for (int i = search(showTime, true); i < at; ++i) {
+				if (ids[i] == id) {
+					return this;
+				}
+			}
+			int number = contentNumbers.computeIfAbsent(content, it -> contentNumbers.size());
+			int[] newContentCounts = Arrays.copyOf(contentCounts, Math.max(contentCounts.length, number + 1));
+			newContentCounts[number]++;
+
+			int n = ids.length;
+			float[] newShowTimes = new float[n + 1];
+			long[] newIds = new long[n + 1];
+			long[] newPostTimes = new long[n + 1];
+			int[] newContents = new int[n + 1];
+			System.arraycopy(showTimes, 0, newShowTimes, 0, at);
+			System.arraycopy(ids, 0, newIds, 0, at);
+			System.arraycopy(postTimes, 0, newPostTimes, 0, at);
+			System.arraycopy(contents, 0, newContents, 0, at);
+			newShowTimes[at] = showTime;
+			newIds[at] = id;
+			newPostTimes[at] = postTime;
+			newContents[at] = number;
+			System.arraycopy(showTimes, at, newShowTimes, at + 1, n - at);
+			System.arraycopy(ids, at, newIds, at + 1, n - at);
+			System.arraycopy(postTimes, at, newPostTimes, at + 1, n - at);
+			System.arraycopy(contents, at, newContents, at + 1, n - at);
+			return new VideoDanmus(duration, newShowTimes, newIds, newPostTimes, newContents, newContentCounts, contentNumbers);
+		}
+
+		/**
+		 * @return ids of the danmus in {@code [from, to)} posted first among those of the same content in the slice
+		 */
+		List<Long> firstPosted(int from, int to) {
+			Map<Integer, Long> earliest = null;
+			for (int i = from; i < to; ++i) {
+				if (contentCounts[contents[i]] > 1) {
+					if (earliest == null) {
+						earliest = new HashMap<>();
+					}
+					earliest.merge(contents[i], postTimes[i], Math::min);
+				}
+			}
+			List<Long> result = new ArrayList<>(to - from);
+			for (int i = from; i < to; ++i) {
+				if (contentCounts[contents[i]] == 1 || earliest.get(contents[i]) == postTimes[i]) {
+					result.add(ids[i]);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Collects the danmus of a video in show time order while it is loaded.
+	 */
+	private static final class Loader implements DanmuLog.DanmuConsumer {
+		int count = 0;
+		float[] showTimes = new float[64];
+		long[] ids = new long[64];
+		long[] postTimes = new long[64];
+		int[] contents = new int[64];
+		int[] contentCounts = new int[64];
+		final Map<String, Integer> contentNumbers = new HashMap<>();
+
+		@Override
+		public void accept(long id, float showTime, String content, long postTime) {
+			if (count == ids.length) {
+				showTimes = Arrays.copyOf(showTimes, count * 2);
+				ids = Arrays.copyOf(ids, count * 2);
+				postTimes = Arrays.copyOf(postTimes, count * 2);
+				contents = Arrays.copyOf(contents, count * 2);
+			}
+			int number = contentNumbers.computeIfAbsent(content, it -> contentNumbers.size());
+			if (number == contentCounts.length) {
+				contentCounts = Arrays.copyOf(contentCounts, number * 2);
+			}
+			contentCounts[number]++;
+			ids[count] = id;
+			showTimes[count] = showTime;
+			postTimes[count] = postTime;
+			contents[count++] = number;
+		}
+
+		VideoDanmus build(float duration) {
+			return new VideoDanmus(duration, Arrays.copyOf(showTimes, count), Arrays.copyOf(ids, count),
+				Arrays.copyOf(postTimes, count), Arrays.copyOf(contents, count),
+				Arrays.copyOf(contentCounts, contentNumbers.size()), contentNumbers);
+		}
+	}
+
+	/**
+	 * A kept video, replaced by its next version in place so that its stamp carries over.
+	 */
+	private static final class Cached {
+		volatile VideoDanmus danmus;
+		/**
+		 * {@link System#nanoTime()} of the last read.
+		 */
+		volatile long lastUsed;
+
+		Cached(VideoDanmus danmus) {
+			this.danmus = danmus;
+			this.lastUsed = System.nanoTime();
+		}
+	}
+
+	private final Map<String, Cached> videos = new ConcurrentHashMap<>();
+
+	/**
+	 * Held by every change of {@link #videos}, never by a read.
+	 */
+	private final Object changeLock = new Object();
+
+	/**
+	 * Bumped by every change of a video hashed to the stripe, and all of them by {@link #clear()}.
+	 */
+	private final AtomicLongArray stripes = new AtomicLongArray(STRIPES);
+
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @param filter whether to keep only the earliest posted danmu of each content in the range
+	 * @return the active danmus of the video shown in {@code [start, end]} sorted by show time,
+	 * an empty list if the video or the range is invalid, or {@code null} if the index is disabled
+	 */
+	public List<Long> range(String bv, float start, float end, boolean filter) throws SQLException {
+		if (maxVideos <= 0) {
+			return null;
+		}
+		if (bv == null) {
+			return Collections.emptyList();
+		}
+		VideoDanmus danmus = get(bv);
+		if (danmus == null) {
+			danmus = load(bv);
+			if (danmus == null) {
+				return Collections.emptyList();
+			}
+		}
+		if (start > end || start < 0 || end > danmus.duration) {
+			return Collections.emptyList();
+		}
+		int from = danmus.search(start, true);
+		int to = danmus.search(end, false);
+		if (from >= to) {
+			return Collections.emptyList();
+		}
+		if (filter) {
+			return danmus.firstPosted(from, to);
+		}
+		List<Long> ids = new ArrayList<>(to - from);
+		for (int i = from; i < to; ++i) {
+			ids.add(danmus.ids[i]);
+		}
+		return ids;
+	}
+
+	/**
+	 * Records a danmu just sent to its video, if the video is kept.
+	 */
+	public void add(SentDanmu danmu) {
+		stripes.incrementAndGet(stripeOf(danmu.bv));
+		if (!videos.containsKey(danmu.bv)) {
+			return;
+		}
+		synchronized (changeLock) {
+			Cached cached = videos.get(danmu.bv);
+			if (cached != null) {
+				cached.danmus = cached.danmus.with(danmu.id, danmu.showTime, danmu.content, micros(danmu.postTime));
+			}
+		}
+	}
+
+	/**
+	 * Forgets a video whose danmus are no longer active.
+	 */
+	public void remove(String bv) {
+		synchronized (changeLock) {
+			stripes.incrementAndGet(stripeOf(bv));
+			videos.remove(bv);
+		}
+	}
+
+	/**
+	 * Forgets every video, after changes that may affect any of them.
+	 */
+	public void clear() {
+		synchronized (changeLock) {
+			generation.incrementAndGet();
+			videos.clear();
+		}
+	}
+
+	/**
+	 * Lists the videos an account owns or sent active danmus to, which are to be forgotten once it is deleted.
+	 * Queried before the deletion, while the partial index on the sender still covers its danmus.
+	 */
+	public List<String> accountVideos(Connection conn, long mid) throws SQLException {
+		if (maxVideos <= 0) {
+			return Collections.emptyList();
+		}
+		String bvSQL = "select bv from video_info where ownMid = ? union select bv from danmu_info where senderMid = ? and active = true";
+		List<String> bvs = new ArrayList<>();
+		try (PreparedStatement stmt = conn.prepareStatement(bvSQL)) {
+			stmt.setLong(1, mid);
+			stmt.setLong(2, mid);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					bvs.add(rs.getString(1));
+				}
+			}
+		}
+		return bvs;
+	}
+
+	private VideoDanmus get(String bv) {
+		Cached cached = videos.get(bv);
+		if (cached == null) {
+			return null;
+		}
+		cached.lastUsed = System.nanoTime();
+		return cached.danmus;
+	}
+
+	private VideoDanmus load(String bv) throws SQLException {
+		int stripe = stripeOf(bv);
+		long startGeneration = generation.get();
+		long startStripe = stripes.get(stripe);
+
+		String durationSQL = "select duration from video_active_super where bv = ?";
+		String danmuSQL = "select danmu_id, showTime, content, postTime from danmu_active where bv = ? order by showTime, danmu_id";
+		VideoDanmus danmus;
+		try (Connection conn = dataSource.getConnection()) {
+			float duration;
+			try (PreparedStatement stmt = conn.prepareStatement(durationSQL)) {
+				stmt.setString(1, bv);
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (!rs.next()) {
+						return null;
+					}
+					duration = rs.getFloat(1);
+				}
+			}
+			Loader loader = new Loader();
+			if (!danmuLog.danmus(bv, loader)) {
+				loader = new Loader();
+				try (PreparedStatement stmt = conn.prepareStatement(danmuSQL)) {
+					stmt.setString(1, bv);
+					try (ResultSet rs = stmt.executeQuery()) {
+						while (rs.next()) {
+							loader.accept(rs.getLong(1), rs.getFloat(2), rs.getString(3), micros(rs.getTimestamp(4)));
+						}
+					}
+				}
+			}
+			danmus = loader.build(duration);
+		}
+
+		synchronized (changeLock) {
+			if (generation.get() == startGeneration && stripes.get(stripe) == startStripe) {
+				videos.put(bv, new Cached(danmus));
+				if (videos.size() > maxVideos) {
+					evict();
+				}
+			}
+		}
+		return danmus;
+	}
+
+	/**
+	 * Drops the least recently read videos, an eighth more than needed so that the next loads need no sweep.
+	 * The stamps move under concurrent reads, so the choice is approximate.
+	 */
+	private void evict() {
+		long[] stamps = videos.values().stream().mapToLong(it -> it.lastUsed).sorted().toArray();
+		int count = Math.min(stamps.length, stamps.length - maxVideos + maxVideos / 8);
+		if (count <= 0) {
+			return;
+		}
+		long threshold = stamps[count - 1];
+		videos.values().removeIf(it -> it.lastUsed - threshold <= 0);
+	}
+
+	private static long micros(Timestamp time) {
+		return time == null ? Long.MIN_VALUE : Math.floorDiv(time.getTime(), 1000) * 1_000_000 + time.getNanos() / 1000;
+	}
+
+	private static int stripeOf(String bv) {
+		return (bv.hashCode() & Integer.MAX_VALUE) % STRIPES;
+	}
+}
@@ -3,9 +3,11 @@ package io.sustc.service.impl;
 import io.sustc.dto.DanmuRecord;
 import io.sustc.dto.UserRecord;
 import io.sustc.dto.VideoRecord;
+import io.sustc.service.DataImportService;
 import io.sustc.service.DatabaseService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.sql.DataSource;
@@ -13,7 +15,12 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * It's important to mark your implementation class with {@link Service} annotation.
@@ -21,9 +28,8 @@ import java.util.List;
  */
 @Service
 @Slf4j
-public class DatabaseServiceImpl implements DatabaseService {
+public class DatabaseServiceImpl implements DatabaseService, DataImportService {
 	static boolean startModify = false;
-	static int userFollowChunkSize;
 
 	/**
 	 * Getting a {@link DataSource} instance from the framework, whose connections are managed by HikariCP.
@@ -35,382 +41,215 @@ public class DatabaseServiceImpl implements DatabaseService {
 	@Autowired
 	private DataSource dataSource;
 
-	/**
-	 * Acknowledges the authors of this project.
-	 *
-	 * @return a list of group members' student-id
-	 */
-	@Override
-	public List<Integer> getGroupMembers() {
-		return List.of(12212232);
-	}
-
-
-	class ImportThread1 extends Thread {
-		List<UserRecord> userRecords;
-
-		public ImportThread1(List<UserRecord> userRecords) {
-			this.userRecords = userRecords;
-		}
-
-		@Override
-		public void run() {
-			// load user_follow
-			String insertUserFollowSQL = "insert into user_follow values (?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserFollowSQL)) {
-				conn.setAutoCommit(false);
-				for (int i = 0; i < userFollowChunkSize; ++i) {
-					UserRecord userRecord = userRecords.get(i);
-					stmt.setLong(2, userRecord.getMid());
-					for (Long starMid : userRecord.getFollowing()) {
-						stmt.setLong(1, starMid);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_follow records, " + e.getMessage());
-			}
-		}
-	}
-
-	class ImportThread2 extends Thread {
-		List<UserRecord> userRecords;
-
-		public ImportThread2(List<UserRecord> userRecords) {
-			this.userRecords = userRecords;
-		}
-
-		@Override
-		public void run() {
-			// load user_follow
-			String insertUserFollowSQL = "insert into user_follow values (?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserFollowSQL)) {
-				conn.setAutoCommit(false);
-				for (int i = userFollowChunkSize; i < userFollowChunkSize * 2; ++i) {
-					UserRecord userRecord = userRecords.get(i);
-					stmt.setLong(2, userRecord.getMid());
-					for (Long starMid : userRecord.getFollowing()) {
-						stmt.setLong(1, starMid);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_follow records, " + e.getMessage());
-			}
-		}
-	}
+	@Autowired
+	private PopularityLeaderboard leaderboard;
 
+	@Autowired
+	private DanmuTimeIndex danmuIndex;
 
-	class ImportThread3 extends Thread {
-		List<UserRecord> userRecords;
+	@Autowired
+	private DanmuLog danmuLog;
 
-		public ImportThread3(List<UserRecord> userRecords) {
-			this.userRecords = userRecords;
-		}
+	@Autowired
+	private AuthCache authCache;
 
-		@Override
-		public void run() {
-			// load user_follow
-			String insertUserFollowSQL = "insert into user_follow values (?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserFollowSQL)) {
-				conn.setAutoCommit(false);
-				for (int i = userFollowChunkSize * 2; i < userFollowChunkSize * 3; ++i) {
-					UserRecord userRecord = userRecords.get(i);
-					stmt.setLong(2, userRecord.getMid());
-					for (Long starMid : userRecord.getFollowing()) {
-						stmt.setLong(1, starMid);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_follow records, " + e.getMessage());
-			}
-		}
-	}
+	/**
+	 * Selects between the {@code insert} batches and binary {@code copy}, so that the two can be compared.
+	 */
+	@Value("${sustc.import.mode:COPY}")
+	private ImportMode importMode = ImportMode.COPY;
 
+	/**
+	 * Size of the import worker pool, {@code 0} for one worker per processor.
+	 * Keep it in line with the connection pool size, idle workers only wait for a connection.
+	 */
+	@Value("${sustc.import.workers:0}")
+	private int importWorkers;
 
-	class ImportThread4 extends Thread {
-		List<UserRecord> userRecords;
+	/**
+	 * Approximate number of table rows loaded by one import task.
+	 */
+	@Value("${sustc.import.chunk-rows:50000}")
+	private int importChunkRows = 50000;
 
-		public ImportThread4(List<UserRecord> userRecords) {
-			this.userRecords = userRecords;
-		}
+	/**
+	 * Rows per {@code executeBatch()} in the {@code BATCH} mode to start with, then tuned from the throughput.
+	 */
+	@Value("${sustc.import.batch-rows:2000}")
+	private int batchRows = 2000;
 
-		@Override
-		public void run() {
-			// load user_follow
-			String insertUserFollowSQL = "insert into user_follow values (?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserFollowSQL)) {
-				conn.setAutoCommit(false);
-				for (int i = userFollowChunkSize * 3; i < userFollowChunkSize * 4; ++i) {
-					UserRecord userRecord = userRecords.get(i);
-					stmt.setLong(2, userRecord.getMid());
-					for (Long starMid : userRecord.getFollowing()) {
-						stmt.setLong(1, starMid);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_follow records, " + e.getMessage());
-			}
-		}
-	}
+	/**
+	 * Approximate upper bound of the parameters buffered by one batch, in bytes.
+	 */
+	@Value("${sustc.import.batch-bytes:8388608}")
+	private long batchBytes = 8388608;
 
-	class ImportThread5 extends Thread {
-		List<UserRecord> userRecords;
+	/**
+	 * Upper bound of record chunks held in memory by the streaming import.
+	 */
+	@Value("${sustc.import.max-chunks-in-flight:16}")
+	private int maxChunksInFlight = 16;
 
-		public ImportThread5(List<UserRecord> userRecords) {
-			this.userRecords = userRecords;
-		}
+	/**
+	 * Number of connections building keys and indexes after the load, {@code 0} for one per processor.
+	 */
+	@Value("${sustc.import.index-workers:0}")
+	private int indexWorkers;
 
-		@Override
-		public void run() {
-			// load user_follow
-			String insertUserFollowSQL = "insert into user_follow values (?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserFollowSQL)) {
-				conn.setAutoCommit(false);
-				for (int i = userFollowChunkSize * 4; i < userRecords.size(); ++i) {
-					UserRecord userRecord = userRecords.get(i);
-					stmt.setLong(2, userRecord.getMid());
-					for (Long starMid : userRecord.getFollowing()) {
-						stmt.setLong(1, starMid);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_follow records, " + e.getMessage());
-			}
-		}
-	}
+	/**
+	 * {@code maintenance_work_mem} of every index build session.
+	 */
+	@Value("${sustc.import.maintenance-work-mem:256MB}")
+	private String maintenanceWorkMem = "256MB";
 
-	class ImportThread6 extends Thread {
-		private final List<VideoRecord> videoRecords;
+	/**
+	 * Loads the raw tables as {@code unlogged} and switches them to {@code logged} once keys and indexes are built.
+	 * Nothing is written to the WAL during the load, but a server crash in the meantime empties the tables,
+	 * in which case the import is run again.
+	 */
+	@Value("${sustc.import.unlogged:false}")
+	private boolean unloggedImport;
 
-		public ImportThread6(List<VideoRecord> videoRecords) {
-			this.videoRecords = videoRecords;
-		}
+	private static final int MAX_IMPORT_ATTEMPTS = 3;
 
-		public void run() {
-			// load user_coin_video
-			String insertUserCoinVideoSQL = "insert into user_coin_video values (?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserCoinVideoSQL)) {
-				conn.setAutoCommit(false);
-				for (VideoRecord videoRecord : videoRecords) {
-					stmt.setString(2, videoRecord.getBv());
-					for (Long mid : videoRecord.getCoin()) {
-						stmt.setLong(1, mid);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_coin_video records, " + e.getMessage());
-			}
+	private static final String STAGING_SCHEMA = "sustc_staging";
 
-			// load user_fav_video
-			String insertUserFavVideoSQL = "insert into user_fav_video values (?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserFavVideoSQL)) {
-				conn.setAutoCommit(false);
-				for (VideoRecord videoRecord : videoRecords) {
-					stmt.setString(2, videoRecord.getBv());
-					for (Long mid : videoRecord.getFavorite()) {
-						stmt.setLong(1, mid);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_fav_video records, " + e.getMessage());
-			}
-		}
+	/**
+	 * Acknowledges the authors of this project.
+	 *
+	 * @return a list of group members' student-id
+	 */
+	@Override
+	public List<Integer> getGroupMembers() {
+		return List.of(12212232);
 	}
 
-	class ImportThread7 extends Thread {
-		private final List<UserRecord> userRecords;
-		private final List<VideoRecord> videoRecords;
-		private final List<DanmuRecord> danmuRecords;
-
-		public ImportThread7(List<UserRecord> userRecords, List<VideoRecord> videoRecords, List<DanmuRecord> danmuRecords) {
-			this.userRecords = userRecords;
-			this.videoRecords = videoRecords;
-			this.danmuRecords = danmuRecords;
-		}
 
-		public void run() {
-			// load user_info
-			String insertUserInfoSQL = "insert into user_info values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, true);";
-			// digest(?, 'sha256')
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserInfoSQL)) {
-				conn.setAutoCommit(false);
-				for (UserRecord userRecord : userRecords) {
-					stmt.setLong(1, userRecord.getMid());
-					stmt.setString(2, userRecord.getName());
-					stmt.setString(3, userRecord.getSex());
-					stmt.setString(4, userRecord.getBirthday());
-					stmt.setShort(5, userRecord.getLevel());
-					stmt.setString(6, userRecord.getSign());
-					stmt.setString(7, userRecord.getIdentity().name().equals("USER") ? "USER" : "SUPER");
-					stmt.setString(8, userRecord.getPassword());
-					stmt.setString(9, userRecord.getQq());
-					stmt.setString(10, userRecord.getWechat());
-					stmt.setInt(11, userRecord.getCoin());
-					stmt.addBatch();
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user records, " + e.getMessage());
-			}
-
-			// load video_info
-			String insertVideoInfoSQL = """
-insert into video_info (bv, title, ownMid, commitTime, revMid, reviewTime, publicTime, duration, descr)
-	values (?, ?, ?, ?, ?, ?, ?, ?, ?);
-			""";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertVideoInfoSQL)) {
-				conn.setAutoCommit(false);
-				for (VideoRecord videoRecord : videoRecords) {
-					stmt.setString(1, videoRecord.getBv());
-					stmt.setString(2, videoRecord.getTitle());
-					stmt.setLong(3, videoRecord.getOwnerMid());
-					stmt.setTimestamp(4, videoRecord.getCommitTime());
-					stmt.setLong(5, videoRecord.getReviewer());
-					stmt.setTimestamp(6, videoRecord.getReviewTime());
-					stmt.setTimestamp(7, videoRecord.getPublicTime());
-					stmt.setFloat(8, videoRecord.getDuration());
-					stmt.setString(9, videoRecord.getDescription());
-					stmt.addBatch();
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert video records, " + e.getMessage());
-			}
-
-			// load danmu_info
-			String insertDanmuInfoSQL = "insert into danmu_info values (?, ?, ?, ?, ?, ?, true);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertDanmuInfoSQL)) {
-				conn.setAutoCommit(false);
-				long danmuCnt = 0;
-				for (DanmuRecord danmuRecord : danmuRecords) {
-					danmuRecord.setDanmuId(++danmuCnt);
-					stmt.setLong(1, danmuCnt);
-					stmt.setString(2, danmuRecord.getBv());
-					stmt.setLong(3, danmuRecord.getMid());
-					stmt.setFloat(4, danmuRecord.getTime());
-					stmt.setString(5, danmuRecord.getContent());
-					stmt.setTimestamp(6, danmuRecord.getPostTime());
-					stmt.addBatch();
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert danmu records, " + e.getMessage());
-			}
-
-			// load user_like_video
-			String insertUserLikeVideoSQL = "insert into user_like_video values (?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserLikeVideoSQL)) {
-				conn.setAutoCommit(false);
-				for (VideoRecord videoRecord : videoRecords) {
-					stmt.setString(2, videoRecord.getBv());
-					for (Long mid : videoRecord.getLike()) {
-						stmt.setLong(1, mid);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_like_video records, " + e.getMessage());
-			}
-
-			// load user_like_danmu
-			String insertUserLikeDanmuSQL = "insert into user_like_danmu values (?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserLikeDanmuSQL)) {
-				conn.setAutoCommit(false);
-				for (DanmuRecord danmuRecord : danmuRecords) {
-					stmt.setLong(1, danmuRecord.getDanmuId());
-					for (Long mid : danmuRecord.getLikedBy()) {
-						stmt.setLong(2, mid);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_like_danmu records, " + e.getMessage());
-			}
-		}
-	}
-
-	class ImportThread8 extends Thread {
-		private final List<VideoRecord> videoRecords;
+	/**
+	 * Keys, constraints and indexes added after the records are loaded, grouped by table.
+	 */
+	private static final List<PostLoadBuilder.TableDdl> POST_LOAD_DDL = List.of(
+		new PostLoadBuilder.TableDdl("user_info", List.of(
+			"alter table user_info add constraint mid_pk primary key (mid)",
+			// "alter table user_info add constraint sex_valid check (sex in ('MALE', 'FEMALE', 'UNKNOWN'))",
+			"alter table user_info add constraint identity_valid check (identity in ('USER', 'SUPER'))",
+			"alter table user_info add constraint coin_non_neg check (coin >= 0)",
+			"alter table user_info add constraint level_valid check (level between 0 and 6)"
+		), List.of(
+			"create index user_info_name_idx on user_info (name) where active = true",
+			"create index user_info_pwd_idx on user_info (pwd) where active = true"
+		)),
+		new PostLoadBuilder.TableDdl("video_info", List.of(
+			"alter table video_info add constraint bv_pk primary key (bv)"
+		), List.of(
+			"create index video_info_title_idx on video_info (title) where active = true",
+			"create index video_info_ownMid_idx on video_info (ownMid) where active = true"
+		)),
+		new PostLoadBuilder.TableDdl("danmu_info", List.of(
+			"alter table danmu_info add constraint danmu_id_pk primary key (danmu_id)"
+			// "alter table danmu_info add constraint mid_fk foreign key (senderMid) references user_info(mid)",
+			// "alter table danmu_info add constraint bv_fk foreign key (bv) references video_info(bv)"
+		), List.of(
+			"create index danmu_info_bv_showTime_idx on danmu_info (bv, showTime) where active = true",
+			"create index danmu_info_senderMid_idx on danmu_info (senderMid) where active = true",
+			"create index danmu_info_showTime_idx on danmu_info (showTime) where active = true"
+		)),
+		new PostLoadBuilder.TableDdl("user_follow", List.of(
+			"alter table user_follow add constraint user_follow_pk primary key (star_mid, fan_mid)"
+			// "alter table user_follow add constraint star_fk foreign key (star_mid) references user_info(mid)",
+			// "alter table user_follow add constraint fan_fk foreign key (fan_mid) references user_info(mid)"
+		), List.of(
+			"create index user_follow_star_mid_idx on user_follow (star_mid)",
+			"create index user_follow_fan_mid_idx on user_follow (fan_mid)"
+		)),
+		new PostLoadBuilder.TableDdl("user_watch_video", List.of(
+			"alter table user_watch_video add constraint user_watch_video_pk primary key (mid, bv)"
+		), List.of(
+			"create index user_watch_video_mid_idx on user_watch_video (mid)",
+			"create index user_watch_video_bv_idx on user_watch_video (bv)"
+		)),
+		new PostLoadBuilder.TableDdl("user_coin_video", List.of(
+			"alter table user_coin_video add constraint user_coin_video_pk primary key (mid, bv)"
+		), List.of(
+			"create index user_coin_video_mid_idx on user_coin_video (mid)",
+			"create index user_coin_video_bv_idx on user_coin_video (bv)"
+		)),
+		new PostLoadBuilder.TableDdl("user_like_video", List.of(
+			"alter table user_like_video add constraint user_like_video_pk primary key (mid, bv)"
+		), List.of(
+			"create index user_like_video_mid_idx on user_like_video (mid)",
+			"create index user_like_video_bv_idx on user_like_video (bv)"
+		)),
+		new PostLoadBuilder.TableDdl("user_fav_video", List.of(
+			"alter table user_fav_video add constraint user_fav_video_pk primary key (mid, bv)"
+		), List.of(
+			"create index user_fav_video_mid_idx on user_fav_video (mid)",
+			"create index user_fav_video_bv_idx on user_fav_video (bv)"
+		)),
+		new PostLoadBuilder.TableDdl("user_like_danmu", List.of(
+			"alter table user_like_danmu add constraint user_like_danmu_pk primary key (danmu_id, mid)"
+		), List.of(
+			"create index user_like_danmu_mid_idx on user_like_danmu (mid)",
+			"create index user_like_danmu_danmu_id_idx on user_like_danmu (danmu_id)"
+		))
+	);
 
-		public ImportThread8(List<VideoRecord> videoRecords) {
-			this.videoRecords = videoRecords;
-		}
+	/**
+	 * Engagement counters of every video, kept current by the functions that like, coin, favorite
+	 * or send danmus (see {@code bump_video_stats}), so the popularity does not need to be aggregated.
+	 * Like the original ranking, danmus are counted whether they are active or not.
+	 */
+	private static final String CREATE_VIDEO_STATS = """
+drop table if exists video_stats;
+create table video_stats as
+	select video_info.bv,
+		coalesce(watch_cnt, 0) as watch_cnt, coalesce(watch_sum, 0) as watch_sum,
+		coalesce(like_cnt, 0) as like_cnt, coalesce(coin_cnt, 0) as coin_cnt,
+		coalesce(fav_cnt, 0) as fav_cnt, coalesce(danmu_cnt, 0) as danmu_cnt
+	from video_info
+		left join (select bv, count(*) as watch_cnt, sum(lastpos) as watch_sum
+			from user_watch_video group by bv) as watchCnt on video_info.bv = watchCnt.bv
+		left join (select bv, count(*) as like_cnt from user_like_video group by bv) as likeCnt
+			on video_info.bv = likeCnt.bv
+		left join (select bv, count(*) as coin_cnt from user_coin_video group by bv) as coinCnt
+			on video_info.bv = coinCnt.bv
+		left join (select bv, count(*) as fav_cnt from user_fav_video group by bv) as favCnt
+			on video_info.bv = favCnt.bv
+		left join (select bv, count(*) as danmu_cnt from danmu_info group by bv) as danmuCnt
+			on video_info.bv = danmuCnt.bv;
+alter table video_stats add constraint video_stats_pk primary key (bv);
+	""";
 
-		public void run() {
-			// load user_watch_video
-			String insertUserWatchVideoSQL = "insert into user_watch_video values (?, ?, ?);";
-			try (Connection conn = dataSource.getConnection();
-			     PreparedStatement stmt = conn.prepareStatement(insertUserWatchVideoSQL)) {
-				conn.setAutoCommit(false);
-				for (VideoRecord videoRecord : videoRecords) {
-					stmt.setString(2, videoRecord.getBv());
-					int viewerCnt = videoRecord.getViewerMids().length;
-					for (int i = 0; i < viewerCnt; i++) {
-						stmt.setLong(1, videoRecord.getViewerMids()[i]);
-						stmt.setFloat(3, videoRecord.getViewTime()[i]);
-						stmt.addBatch();
-					}
-				}
-				stmt.executeBatch();
-				conn.commit();
-				conn.setAutoCommit(true);
-			} catch (SQLException e) {
-				System.out.println("[ERROR] Fail to insert user_watch_video records, " + e.getMessage());
-			}
-		}
-	}
+	/**
+	 * Number of danmus in every 10-second chunk of a video, active or not like the original {@code get_hotspot},
+	 * kept current by {@code send_danmu}, {@code del_video} and {@code user_del_sustc}, so that {@code get_hotspot}
+	 * reads a few rows instead of grouping all danmus of the video.
+	 */
+	private static final String CREATE_DANMU_HIST = """
+drop table if exists danmu_hist;
+create table danmu_hist as
+	select bv, cast(floor(showTime / 10) as int) as chunk, count(*) as cnt
+	from danmu_info group by bv, chunk;
+alter table danmu_hist add constraint danmu_hist_pk primary key (bv, chunk);
+	""";
 
+	/**
+	 * The QQ and WeChat ids of every active user, kept current by {@code user_reg_sustc} and {@code user_del_sustc},
+	 * so that {@code verify_auth} and the uniqueness checks of a registration find a user with one hash index probe.
+	 * Missing ids, either {@code null} or empty, are left out.
+	 */
+	private static final String CREATE_USER_IDENTITY = """
+drop table if exists user_identity;
+create table user_identity as
+	select cast('QQ' as varchar(6)) as provider, qqid as external_id, mid
+		from user_info where active = true and qqid <> ''
+	union all
+	select 'WECHAT', wxid, mid
+		from user_info where active = true and wxid <> '';
+create index user_identity_qq_idx on user_identity using hash (external_id) where provider = 'QQ';
+create index user_identity_wechat_idx on user_identity using hash (external_id) where provider = 'WECHAT';
+create index user_identity_mid_idx on user_identity (mid);
+	""";
 
 	/**
 	 * Imports data to an empty database.
@@ -426,102 +265,155 @@ insert into video_info (bv, title, ownMid, commitTime, revMid, reviewTime, publi
 		List<UserRecord> userRecords,
 		List<VideoRecord> videoRecords
 	) {
-		userFollowChunkSize = userRecords.size() / 5;
-		ImportThread1 importThread1 = new ImportThread1(userRecords);
-		ImportThread2 importThread2 = new ImportThread2(userRecords);
-		ImportThread3 importThread3 = new ImportThread3(userRecords);
-		ImportThread4 importThread4 = new ImportThread4(userRecords);
-		ImportThread5 importThread5 = new ImportThread5(userRecords);
-		ImportThread6 importThread6 = new ImportThread6(videoRecords);
-		ImportThread7 importThread7 = new ImportThread7(userRecords, videoRecords, danmuRecords);
-		ImportThread8 importThread8 = new ImportThread8(videoRecords);
-		importThread1.start();
-		importThread2.start();
-		importThread3.start();
-		importThread4.start();
-		importThread5.start();
-		importThread6.start();
-		importThread7.start();
-		importThread8.start();
-		try {
-			importThread1.join();
-			importThread2.join();
-			importThread3.join();
-			importThread4.join();
-			importThread5.join();
-			importThread6.join();
-			importThread7.join();
-			importThread8.join();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
+		runImport(dataSource, ImportScheduler.LAYOUT_PER_TABLE, committedChunks -> newScheduler(dataSource, committedChunks)
+			.run(danmuRecords, userRecords, videoRecords), true);
+		dataReplaced();
+	}
 
-		String createFunctions = """
--- add keys and constraints
-alter table user_info add constraint mid_pk primary key (mid);
--- alter table user_info add constraint sex_valid check (sex in ('MALE', 'FEMALE', 'UNKNOWN'));
-alter table user_info add constraint identity_valid check (identity in ('USER', 'SUPER'));
-alter table user_info add constraint coin_non_neg check (coin >= 0);
-alter table user_info add constraint level_valid check (level between 0 and 6);
+	/**
+	 * Imports data to an empty database, reading the records lazily.
+	 * At most {@code sustc.import.max-chunks-in-flight} chunks of records are held in memory.
+	 *
+	 * @param danmuRecords danmu records parsed from csv
+	 * @param userRecords  user records parsed from csv
+	 * @param videoRecords video records parsed from csv
+	 */
+	@Override
+	public void importData(
+		Iterator<DanmuRecord> danmuRecords,
+		Iterator<UserRecord> userRecords,
+		Iterator<VideoRecord> videoRecords
+	) {
+		// the iterators cannot be read twice, a crashed unlogged load is not repeated here
+		runImport(dataSource, ImportScheduler.LAYOUT_STREAM, committedChunks -> newScheduler(dataSource, committedChunks)
+			.run(danmuRecords, userRecords, videoRecords, maxChunksInFlight), false);
+		dataReplaced();
+	}
 
-alter table video_info add constraint bv_pk primary key (bv);
+	@Override
+	public void mergeData(
+		List<DanmuRecord> danmuRecords,
+		List<UserRecord> userRecords,
+		List<VideoRecord> videoRecords
+	) {
+		if (!ImportState.DONE.equals(new ImportState(dataSource).lastPhase())) {
+			throw new IllegalStateException("Data shall be imported before merging");
+		}
+		new DeltaMerger(dataSource, importMode.newLoader(batchRows, batchBytes))
+			.merge(danmuRecords, userRecords, videoRecords);
+		dataReplaced();
+	}
 
-alter table danmu_info add constraint danmu_id_pk primary key (danmu_id);
--- alter table danmu_info add constraint mid_fk foreign key (senderMid) references user_info(mid);
--- alter table danmu_info add constraint bv_fk foreign key (bv) references video_info(bv);
+	@Override
+	public void reloadData(
+		List<DanmuRecord> danmuRecords,
+		List<UserRecord> userRecords,
+		List<VideoRecord> videoRecords
+	) {
+		StagingSchema staging = new StagingSchema(dataSource, STAGING_SCHEMA);
+		staging.create(POST_LOAD_DDL.stream().map(ddl -> ddl.table).toList());
+		DataSource stage = staging.dataSource();
+		runImport(stage, ImportScheduler.LAYOUT_PER_TABLE, committedChunks -> newScheduler(stage, committedChunks)
+			.run(danmuRecords, userRecords, videoRecords), true);
+		staging.swap();
+		dataReplaced();
+	}
 
-alter table user_follow add constraint user_follow_pk primary key (star_mid, fan_mid);
--- alter table user_follow add constraint star_fk foreign key (star_mid) references user_info(mid);
--- alter table user_follow add constraint fan_fk foreign key (fan_mid) references user_info(mid);
+	/**
+	 * Drops what the services keep in memory about the data.
+	 */
+	private void dataReplaced() {
+		leaderboard.invalidate();
+		danmuIndex.clear();
+		danmuLog.rebuild();
+		authCache.clear();
+	}
 
-alter table user_watch_video add constraint user_watch_video_pk primary key (mid, bv);
--- alter table user_watch_video add constraint mid_fk foreign key (mid) references user_info(mid);
--- alter table user_watch_video add constraint bv_fk foreign key (bv) references video_info(bv);
+	private ImportScheduler newScheduler(DataSource target, Set<String> committedChunks) {
+		return new ImportScheduler(target, importMode.newLoader(batchRows, batchBytes),
+			importWorkers, importChunkRows, committedChunks);
+	}
 
-alter table user_coin_video add constraint user_coin_video_pk primary key (mid, bv);
--- alter table user_coin_video add constraint mid_fk foreign key (mid) references user_info(mid);
--- alter table user_coin_video add constraint bv_fk foreign key (bv) references video_info(bv);
+	/**
+	 * Runs {@code load} and the post-load build as phases recorded in {@link ImportState}, then logs the time of each.
+	 * <p>
+	 * An import that did not reach {@link ImportState#DONE} is resumed: {@code load} is given the chunks it already
+	 * committed, and whatever the post-load phase left behind is dropped. If it cannot be resumed, its leftovers
+	 * are cleaned first. In the unlogged mode, a server restart during the load or the build is detected by
+	 * {@link ImportState#serverRestarted()}, and the import is repeated if {@code repeatable}.
+	 *
+	 * @param target connections to the schema being imported into
+	 * @param layout how {@code load} cuts the records into chunks, a resumed import must use the same
+	 */
+	private void runImport(DataSource target, String layout, Consumer<Set<String>> load, boolean repeatable) {
+		ImportState state = new ImportState(target);
+		List<String> tables = POST_LOAD_DDL.stream().map(ddl -> ddl.table).toList();
+		List<String> dropStatements = PostLoadBuilder.dropStatements(POST_LOAD_DDL);
+		String lastPhase = state.lastPhase();
+		if (lastPhase == null || ImportState.DONE.equals(lastPhase)) {
+			state.clearChunks();
+		} else if (state.canResume(importChunkRows, layout)) {
+			log.info("Resuming the import interrupted in phase {}", lastPhase);
+			state.dropPostLoad(dropStatements);
+		} else {
+			state.reset(tables, dropStatements);
+		}
 
-alter table user_like_video add constraint user_like_video_pk primary key (mid, bv);
--- alter table user_like_video add constraint mid_fk foreign key (mid) references user_info(mid);
--- alter table user_like_video add constraint bv_fk foreign key (bv) references video_info(bv);
+		for (int attempt = 1; ; ++attempt) {
+			Map<String, Long> phaseTimes = new LinkedHashMap<>();
+			long phaseStart = System.currentTimeMillis();
+			state.begin(importChunkRows, layout, unloggedImport);
+			if (unloggedImport) {
+				state.setLogged(tables, false);
+			}
+			phaseTimes.put("prepare", System.currentTimeMillis() - phaseStart);
+
+			RuntimeException failure = null;
+			try {
+				phaseStart = System.currentTimeMillis();
+				load.accept(state.committedChunks());
+				phaseTimes.put("load", System.currentTimeMillis() - phaseStart);
+
+				phaseStart = System.currentTimeMillis();
+				state.enter(ImportState.BUILDING);
+				buildPostLoad(target);
+				phaseTimes.put("build", System.currentTimeMillis() - phaseStart);
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			if (unloggedImport && state.serverRestarted()) {
+				if (!repeatable || attempt >= MAX_IMPORT_ATTEMPTS) {
+					throw new IllegalStateException("Server restarted during unlogged import, the tables were reset", failure);
+				}
+				log.warn("Server restarted during unlogged import, importing again (attempt {})", attempt + 1);
+				state.reset(tables, dropStatements);
+				continue;
+			}
+			if (failure != null) {
+				throw failure;
+			}
 
-alter table user_fav_video add constraint user_fav_video_pk primary key (mid, bv);
--- alter table user_fav_video add constraint mid_fk foreign key (mid) references user_info(mid);
--- alter table user_fav_video add constraint bv_fk foreign key (bv) references video_info(bv);
+			phaseStart = System.currentTimeMillis();
+			state.enter(ImportState.FINALIZING);
+			if (unloggedImport) {
+				state.setLogged(tables, true);
+			}
+			state.enter(ImportState.DONE);
+			phaseTimes.put("finalize", System.currentTimeMillis() - phaseStart);
 
-alter table user_like_danmu add constraint user_like_danmu_pk primary key (danmu_id, mid);
--- alter table user_like_danmu add constraint mid_fk foreign key (mid) references user_info(mid);
--- alter table user_like_danmu add constraint did_fk foreign key (danmu_id) references danmu_info(danmu_id);
+			log.info("Imported in {} mode{}: {}", importMode, unloggedImport ? " (unlogged)" : "", phaseTimes);
+			return;
+		}
+	}
 
+	/**
+	 * Adds keys, indexes, views and functions once the raw tables are loaded.
+	 */
+	private void buildPostLoad(DataSource target) {
+		String createFunctions = """
 alter sequence user_info_mid_seq restart with 10000000;
 alter sequence danmu_info_danmu_id_seq restart with 10000000;
 
--- create index
-create index user_info_name_idx on user_info (name) where active = true;
-create index user_info_pwd_idx on user_info (pwd) where active = true;
-create index user_info_qqid_idx on user_info (qqid) where active = true;
-create index user_info_wxid_idx on user_info (wxid) where active = true;
-create index video_info_title_idx on video_info (title) where active = true;
-create index video_info_ownMid_idx on video_info (ownMid) where active = true;
-create index danmu_info_bv_idx on danmu_info (bv) where active = true;
-create index danmu_info_senderMid_idx on danmu_info (senderMid) where active = true;
-create index danmu_info_showTime_idx on danmu_info (showTime) where active = true;
-create index user_follow_star_mid_idx on user_follow (star_mid);
-create index user_follow_fan_mid_idx on user_follow (fan_mid);
-create index user_watch_video_mid_idx on user_watch_video (mid);
-create index user_watch_video_bv_idx on user_watch_video (bv);
-create index user_coin_video_mid_idx on user_coin_video (mid);
-create index user_coin_video_bv_idx on user_coin_video (bv);
-create index user_like_video_mid_idx on user_like_video (mid);
-create index user_like_video_bv_idx on user_like_video (bv);
-create index user_fav_video_mid_idx on user_fav_video (mid);
-create index user_fav_video_bv_idx on user_fav_video (bv);
-create index user_like_danmu_mid_idx on user_like_danmu (mid);
-create index user_like_danmu_danmu_id_idx on user_like_danmu (danmu_id);
-
-
 -- create views
 create or replace view user_active as
 	select * from user_info where active = true;
@@ -566,16 +458,16 @@ create or replace function verify_auth(
             qqid_mid := null;
 		else
 			qqid_mid := (
-				select mid from user_active
-					where user_active.qqid = _qqid
+				select mid from user_identity
+					where provider = 'QQ' and external_id = _qqid
 			);
 		end if;
 		if (_wxid is null or _wxid = '') then
 			wxid_mid := null;
 		else
 	        wxid_mid := (
-	            select mid from user_active
-	                where user_active.wxid = _wxid
+	            select mid from user_identity
+	                where provider = 'WECHAT' and external_id = _wxid
 	        );
 	    end if;
         if qqid_mid is not null and wxid_mid is not null
@@ -694,50 +586,39 @@ create or replace function user_reg_sustc(
 		if _sign is null then
 			_sign := '';
 		end if;
-		if _qqid is null then
-			_qqid := '';
-		end if;
-		if _wxid is null then
-			_wxid := '';
-		end if;
+		_qqid := nullif(_qqid, '');
+		_wxid := nullif(_wxid, '');
 		if exists(select 1 from user_active where user_active.name = _name) then
 			-- raise notice 'Name used.';
 			return -1;
 		end if;
-        if _qqid is not null and _qqid <> '' and exists(select 1 from user_active where user_active.qqid = _qqid) then
-            -- raise notice 'QQ used.';
-            return -1;
-        end if;
-        if _wxid is not null and _wxid <> '' and exists(select 1 from user_active where user_active.wxid = _wxid) then
-            -- raise notice 'WeChat used.';
+        if exists(select 1 from user_identity
+            where provider = 'QQ' and external_id = _qqid
+                or provider = 'WECHAT' and external_id = _wxid) then
+            -- raise notice 'QQ or WeChat used.';
             return -1;
         end if;
         begin
 	        insert into user_info (name, sex, birthday, sign, pwd, qqid, wxid)
-	            values (_name, _sex, _birthday, _sign, _pwd, _qqid, _wxid);
+	            values (_name, _sex, _birthday, _sign, _pwd, _qqid, _wxid)
+	            returning mid into id;
+	        insert into user_identity (provider, external_id, mid)
+	            select provider, external_id, id
+	                from (values ('QQ', _qqid), ('WECHAT', _wxid)) as given (provider, external_id)
+	                where external_id is not null;
         exception when others then
             -- raise notice 'User registration failed.';
             return -1;
         end;
-        id := (
-			select max(mid) from user_active
-				where user_active.name = _name
-		);
 		return id;
     end $$ language plpgsql;
 
-create or replace function user_del_sustc(
-    auth_mid bigint,
-    auth_pwd text,
-    auth_qqid varchar(50),
-    auth_wxid varchar(50),
+create or replace function user_del_sustc_by_mid (
+    real_mid bigint,
     _mid bigint
 )
     returns boolean as $$
-    declare
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return false;
@@ -749,7 +630,11 @@ create or replace function user_del_sustc(
         if real_mid = _mid or
             ((select identity from user_active where user_active.mid = real_mid) = 'SUPER')
             and ((select identity from user_active where user_active.mid = _mid) = 'USER') then
+            delete from danmu_hist where bv in (
+                select bv from video_info where video_info.ownMid = _mid
+            );
             update user_info set active = false where user_info.mid = _mid;
+            delete from user_identity where user_identity.mid = _mid;
             update video_info set active = false where video_info.ownMid = _mid;
             update danmu_info set active = false where bv in (
                 select bv from video_info where video_info.ownMid = _mid
@@ -760,18 +645,24 @@ create or replace function user_del_sustc(
         return false;
     end $$ language plpgsql;
 
-create or replace function add_follow(
+create or replace function user_del_sustc(
     auth_mid bigint,
-    auth_pwd varchar(260),
+    auth_pwd text,
     auth_qqid varchar(50),
     auth_wxid varchar(50),
+    _mid bigint
+)
+    returns boolean as $$
+    begin
+        return user_del_sustc_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _mid);
+    end $$ language plpgsql;
+
+create or replace function add_follow_by_mid (
+    real_mid bigint,
     followee_mid bigint
 )
     returns boolean as $$
-    declare
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 or real_mid = followee_mid then
             return false;
         end if;
@@ -789,6 +680,18 @@ create or replace function add_follow(
 		end if;
 	end $$ language plpgsql;
 
+create or replace function add_follow(
+    auth_mid bigint,
+    auth_pwd varchar(260),
+    auth_qqid varchar(50),
+    auth_wxid varchar(50),
+    followee_mid bigint
+)
+    returns boolean as $$
+    begin
+        return add_follow_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), followee_mid);
+    end $$ language plpgsql;
+
 create or replace function get_user_info (_mid bigint) returns table(
 	_coin int,
 	following bigint[],
@@ -825,11 +728,8 @@ create or replace function generate_unique_bv() returns text as $$
 	    end loop;
 	end $$ language plpgsql;
 
-create or replace function post_video(
-    auth_mid bigint,
-    auth_pwd varchar(260),
-    auth_qqid varchar(50),
-    auth_wxid varchar(50),
+create or replace function post_video_by_mid (
+    real_mid bigint,
     _title text,
     _descr text,
     _duration float8,
@@ -838,9 +738,7 @@ create or replace function post_video(
     returns varchar(25) as $$
     declare
         bv text;
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return null;
@@ -855,18 +753,27 @@ create or replace function post_video(
         return bv;
     end $$ language plpgsql;
 
-create or replace function del_video(
+create or replace function post_video(
     auth_mid bigint,
-    auth_pwd char(256),
+    auth_pwd varchar(260),
     auth_qqid varchar(50),
     auth_wxid varchar(50),
+    _title text,
+    _descr text,
+    _duration float8,
+    _publicTime timestamp
+)
+    returns varchar(25) as $$
+    begin
+        return post_video_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _title, _descr, _duration, _publicTime);
+    end $$ language plpgsql;
+
+create or replace function del_video_by_mid (
+    real_mid bigint,
     _bv varchar(25)
 )
     returns boolean as $$
-    declare
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return false;
@@ -879,16 +786,26 @@ create or replace function del_video(
             ((select identity from user_active where user_active.mid = real_mid) = 'SUPER') then
             update video_info set active = false where bv = _bv;
             update danmu_info set active = false where bv = _bv;
+            delete from danmu_hist where bv = _bv;
             return true;
         end if;
         return false;
     end $$ language plpgsql;
 
-create or replace function update_video(
+create or replace function del_video(
     auth_mid bigint,
     auth_pwd char(256),
     auth_qqid varchar(50),
     auth_wxid varchar(50),
+    _bv varchar(25)
+)
+    returns boolean as $$
+    begin
+        return del_video_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _bv);
+    end $$ language plpgsql;
+
+create or replace function update_video_by_mid (
+    real_mid bigint,
     _bv varchar(25),
     _title text,
     _descr text,
@@ -896,10 +813,7 @@ create or replace function update_video(
     _publicTime timestamp
 )
     returns boolean as $$
-    declare
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return false;
@@ -932,20 +846,30 @@ create or replace function update_video(
         return false;
     end $$ language plpgsql;
 
-create or replace function search_video(
+create or replace function update_video(
     auth_mid bigint,
-    auth_pwd varchar(260),
+    auth_pwd char(256),
     auth_qqid varchar(50),
     auth_wxid varchar(50),
+    _bv varchar(25),
+    _title text,
+    _descr text,
+    _duration float8,
+    _publicTime timestamp
+)
+    returns boolean as $$
+    begin
+        return update_video_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _bv, _title, _descr, _duration, _publicTime);
+    end $$ language plpgsql;
+
+create or replace function search_video_by_mid (
+    real_mid bigint,
     keywords text,
     page_size int,
     page_num int
 )
     returns varchar(25)[] as $$
-	declare
-		real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return null;
@@ -983,6 +907,20 @@ create or replace function search_video(
 		);
     end $$ language plpgsql;
 
+create or replace function search_video(
+    auth_mid bigint,
+    auth_pwd varchar(260),
+    auth_qqid varchar(50),
+    auth_wxid varchar(50),
+    keywords text,
+    page_size int,
+    page_num int
+)
+    returns varchar(25)[] as $$
+    begin
+        return search_video_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), keywords, page_size, page_num);
+    end $$ language plpgsql;
+
 create or replace function get_avg_view_rate(_bv varchar(25))
     returns double precision as $$
     declare
@@ -1001,36 +939,38 @@ create or replace function get_avg_view_rate(_bv varchar(25))
         return _avg / (select duration from video_active_super where bv = _bv);
     end $$ language plpgsql;
 
-create or replace function get_hotspot(_bv varchar(25))
+-- hotspots of buckets made of _chunks consecutive 10-second chunks
+create or replace function get_hotspot_rollup(_bv varchar(25), _chunks int)
     returns table(chunkId int[]) as $$
     begin
-        if not exists(select 1 from video_active_super where bv = _bv) then
+        if not exists(select 1 from video_active_super where bv = _bv) or _chunks <= 0 then
             -- raise notice 'Video not found.';
             return query select array_agg(0) where false;
         end if;
         return query
-        select array_agg(cast(hotspot.chunkId as int)) from (
-            select danmu_cnt.chunkId, cnt, max(cnt) over() as maxx from (
-                select floor(showtime / 10) as chunkId, count(*) as cnt
-                    from danmu_info where bv = _bv group by chunkId
-            ) as danmu_cnt
+        select array_agg(hotspot.bucket) from (
+            select bucket, cnt, max(cnt) over() as maxx from (
+                select chunk / _chunks as bucket, sum(cnt) as cnt
+                    from danmu_hist where bv = _bv group by bucket
+            ) as bucket_cnt
         ) as hotspot where cnt = maxx and maxx <> 0;
     end $$ language plpgsql;
 
-create or replace function rev_video(
-    auth_mid bigint,
-    auth_pwd char(256),
-    auth_qqid varchar(50),
-    auth_wxid varchar(50),
+create or replace function get_hotspot(_bv varchar(25))
+    returns table(chunkId int[]) as $$
+    begin
+        return query select * from get_hotspot_rollup(_bv, 1);
+    end $$ language plpgsql;
+
+create or replace function rev_video_by_mid (
+    real_mid bigint,
     _bv varchar(25)
 )
     returns boolean as $$
     declare
         _ownMid bigint;
         _revMid bigint;
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return false;
@@ -1063,19 +1003,42 @@ create or replace function rev_video(
         return true;
     end $$ language plpgsql;
 
-create or replace function coin_video(
+create or replace function rev_video(
     auth_mid bigint,
-    auth_pwd varchar(256),
+    auth_pwd char(256),
     auth_qqid varchar(50),
     auth_wxid varchar(50),
     _bv varchar(25)
+)
+    returns boolean as $$
+    begin
+        return rev_video_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _bv);
+    end $$ language plpgsql;
+
+create or replace function bump_video_stats(
+    _bv varchar(25),
+    _like int,
+    _coin int,
+    _fav int,
+    _danmu int
+)
+    returns void as $$
+    begin
+        insert into video_stats (bv, watch_cnt, watch_sum, like_cnt, coin_cnt, fav_cnt, danmu_cnt)
+            values (_bv, 0, 0, _like, _coin, _fav, _danmu)
+            on conflict (bv) do update set like_cnt = video_stats.like_cnt + _like,
+                coin_cnt = video_stats.coin_cnt + _coin, fav_cnt = video_stats.fav_cnt + _fav,
+                danmu_cnt = video_stats.danmu_cnt + _danmu;
+    end $$ language plpgsql;
+
+create or replace function coin_video_by_mid (
+    real_mid bigint,
+    _bv varchar(25)
 )
     returns boolean as $$
     declare
         _ownMid bigint;
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return false;
@@ -1099,6 +1062,7 @@ create or replace function coin_video(
         begin
             insert into user_coin_video (mid, bv) values (real_mid, _bv);
             update user_info set coin = coin - 1 where mid = real_mid;
+            perform bump_video_stats(_bv, 0, 1, 0, 0);
         exception when others then
             -- raise notice 'Coin failed.';
             return false;
@@ -1106,19 +1070,26 @@ create or replace function coin_video(
         return true;
     end $$ language plpgsql;
 
-create or replace function like_video(
+create or replace function coin_video(
     auth_mid bigint,
-    auth_pwd char(256),
+    auth_pwd varchar(256),
     auth_qqid varchar(50),
     auth_wxid varchar(50),
     _bv varchar(25)
+)
+    returns boolean as $$
+    begin
+        return coin_video_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _bv);
+    end $$ language plpgsql;
+
+create or replace function like_video_by_mid (
+    real_mid bigint,
+    _bv varchar(25)
 )
     returns boolean as $$
     declare
         _ownMid bigint;
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return false;
@@ -1142,6 +1113,7 @@ create or replace function like_video(
         begin
             insert into user_like_video (mid, bv)
                 values (real_mid, _bv);
+            perform bump_video_stats(_bv, 1, 0, 0, 0);
         exception when others then
             -- raise notice 'Like failed.';
             return false;
@@ -1149,19 +1121,26 @@ create or replace function like_video(
         return true;
     end $$ language plpgsql;
 
-create or replace function fav_video(
+create or replace function like_video(
     auth_mid bigint,
     auth_pwd char(256),
     auth_qqid varchar(50),
     auth_wxid varchar(50),
     _bv varchar(25)
+)
+    returns boolean as $$
+    begin
+        return like_video_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _bv);
+    end $$ language plpgsql;
+
+create or replace function fav_video_by_mid (
+    real_mid bigint,
+    _bv varchar(25)
 )
     returns boolean as $$
     declare
         _ownMid bigint;
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return false;
@@ -1185,6 +1164,7 @@ create or replace function fav_video(
         begin
             insert into user_fav_video (mid, bv)
                 values (real_mid, _bv);
+            perform bump_video_stats(_bv, 0, 0, 1, 0);
         exception when others then
             -- raise notice 'Collection failed.';
             return false;
@@ -1192,14 +1172,23 @@ create or replace function fav_video(
         return true;
     end $$ language plpgsql;
 
-
-
--- functions for DanmuServiceImpl
-create or replace function send_danmu (
+create or replace function fav_video(
     auth_mid bigint,
-    auth_pwd varchar(260),
+    auth_pwd char(256),
     auth_qqid varchar(50),
     auth_wxid varchar(50),
+    _bv varchar(25)
+)
+    returns boolean as $$
+    begin
+        return fav_video_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _bv);
+    end $$ language plpgsql;
+
+
+
+-- functions for DanmuServiceImpl
+create or replace function send_danmu_by_mid (
+    real_mid bigint,
     _bv varchar(25),
     _content text,
     show_time float8
@@ -1207,10 +1196,8 @@ create or replace function send_danmu (
     returns bigint as $$
     declare
         _danmu_id bigint;
-        real_mid bigint;
         time timestamp;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return -1;
@@ -1232,6 +1219,9 @@ create or replace function send_danmu (
         begin
             insert into danmu_info (bv, senderMid, showtime, content, postTime)
                 values (_bv, real_mid, show_time, _content, time);
+            perform bump_video_stats(_bv, 0, 0, 0, 1);
+            insert into danmu_hist (bv, chunk, cnt) values (_bv, cast(floor(show_time / 10) as int), 1)
+                on conflict (bv, chunk) do update set cnt = danmu_hist.cnt + 1;
         exception when others then
                 -- raise notice 'Send danmu failed.';
                 return -1;
@@ -1241,6 +1231,60 @@ create or replace function send_danmu (
         return _danmu_id;
     end $$ language plpgsql;
 
+create or replace function send_danmu (
+    auth_mid bigint,
+    auth_pwd varchar(260),
+    auth_qqid varchar(50),
+    auth_wxid varchar(50),
+    _bv varchar(25),
+    _content text,
+    show_time float8
+)
+    returns bigint as $$
+    begin
+        return send_danmu_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _bv, _content, show_time);
+    end $$ language plpgsql;
+
+create or replace function send_danmu_batch (
+    real_mids bigint[],
+    _bvs varchar[],
+    _contents text[],
+    show_times float8[]
+)
+    returns bigint[] as $$
+    declare
+        _danmu_ids bigint[];
+    begin
+        -- same checks as send_danmu_by_mid, the senders are resolved by the caller
+        with req as (
+            select * from unnest(real_mids, _bvs, _contents, show_times)
+                with ordinality as r (real_mid, bv, content, show_time, idx)
+        ), accepted as materialized (
+            select req.idx, nextval('danmu_info_danmu_id_seq') as danmu_id,
+                req.bv, req.real_mid, req.content, req.show_time
+            from req
+                join video_active on video_active.bv = req.bv
+            where req.real_mid >= 0 and req.content is not null and req.content <> ''
+                and req.show_time between 0 and video_active.duration
+                and exists(select 1 from user_watch_video
+                    where user_watch_video.mid = req.real_mid and user_watch_video.bv = req.bv)
+        ), inserted as (
+            insert into danmu_info (danmu_id, bv, senderMid, showtime, content, postTime)
+                select danmu_id, bv, real_mid, show_time, content, now() from accepted order by danmu_id
+        ), stats as (
+            insert into video_stats (bv, watch_cnt, watch_sum, like_cnt, coin_cnt, fav_cnt, danmu_cnt)
+                select bv, 0, 0, 0, 0, 0, count(*) from accepted group by bv
+                on conflict (bv) do update set danmu_cnt = video_stats.danmu_cnt + excluded.danmu_cnt
+        ), hist as (
+            insert into danmu_hist (bv, chunk, cnt)
+                select bv, cast(floor(show_time / 10) as int), count(*) from accepted group by 1, 2
+                on conflict (bv, chunk) do update set cnt = danmu_hist.cnt + excluded.cnt
+        )
+        select array_agg(coalesce(accepted.danmu_id, -1) order by req.idx) into _danmu_ids
+            from req left join accepted on accepted.idx = req.idx;
+        return _danmu_ids;
+    end $$ language plpgsql;
+
 create or replace function display_danmu (
     _bv text,
     start_time float8,
@@ -1278,18 +1322,56 @@ create or replace function display_danmu (
         end if;
     end $$ language plpgsql;
 
-create or replace function like_danmu (
-    auth_mid bigint,
-    auth_pwd varchar(260),
-    auth_qqid varchar(50),
-    auth_wxid varchar(50),
+create or replace function display_danmu_capped (
+    _bv text,
+    start_time float8,
+    end_time float8,
+    _filter boolean,
+    _window float8,
+    _limit int,
+    most_liked boolean
+)
+    returns bigint[] as $$
+    begin
+        if not exists(select 1 from video_active_super where bv = _bv) then
+            return null;
+        end if;
+        if (start_time > end_time or start_time < 0
+            or end_time > (select duration from video_active_super where bv = _bv)
+            or _window <= 0 or _limit <= 0) then
+            return null;
+        end if;
+        return (
+            with allDanmu as (
+                select danmu_id, showTime, content, postTime from danmu_active
+                    where bv = _bv and showTime between start_time and end_time
+            ), shown as (
+                select danmu_id, showTime, postTime from (
+                    select danmu_id, showTime, postTime,
+                        min(postTime) over (partition by content) as firstPosted
+                    from allDanmu
+                ) as DPP where not _filter or postTime = firstPosted
+            ), ranked as (
+                select shown.danmu_id, showTime, row_number() over (
+                    partition by floor(showTime / _window)
+                    order by case when most_liked then coalesce(likes.cnt, 0) end desc, postTime, shown.danmu_id
+                ) as rn
+                from shown left join (
+                    select danmu_id, count(*) as cnt from user_like_danmu
+                        where most_liked and danmu_id in (select danmu_id from shown)
+                        group by danmu_id
+                ) as likes on likes.danmu_id = shown.danmu_id
+            )
+            select array_agg(danmu_id order by showTime, danmu_id) from ranked where rn <= _limit
+        );
+    end $$ language plpgsql;
+
+create or replace function like_danmu_by_mid (
+    real_mid bigint,
     _danmu_id bigint
 )
     returns boolean as $$
-    declare
-        real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return false;
@@ -1313,6 +1395,18 @@ create or replace function like_danmu (
         return true;
     end $$ language plpgsql;
 
+create or replace function like_danmu (
+    auth_mid bigint,
+    auth_pwd varchar(260),
+    auth_qqid varchar(50),
+    auth_wxid varchar(50),
+    _danmu_id bigint
+)
+    returns boolean as $$
+    begin
+        return like_danmu_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), _danmu_id);
+    end $$ language plpgsql;
+
 
 
 -- functions for RecommenderServiceImpl
@@ -1336,6 +1430,17 @@ create or replace function recommend_next_video (_bv varchar(25))
 		);
     end $$ language plpgsql;
 
+create or replace function popularity_ranking()
+	returns table (video_bv varchar(25), video_score float8) as $$
+    begin
+        return query
+            select video_active_super.bv, (like_cnt + coin_cnt + fav_cnt + danmu_cnt
+                    + watch_sum / video_active_super.duration) / watch_cnt
+                from video_stats join video_active_super on video_active_super.bv = video_stats.bv
+                where watch_cnt > 0
+                order by 2 desc;
+    end; $$ language plpgsql;
+
 create or replace function general_recommendations (
 	page_size int,
 	page_num int
@@ -1343,46 +1448,20 @@ create or replace function general_recommendations (
 	returns varchar(25)[] as $$
     begin
         return (
-            with auxCnt as (
-                select user_watch_video.bv, count(*) as cnt from user_watch_video group by user_watch_video.bv
-            )
-            select array_agg(tmp.bv) from (
-                select video_active_super.bv, (
-                    case
-                        when cnt = 0 then 0
-                        else ((coalesce(cnt_like, 0) + coalesce(cnt_coin, 0) + coalesce(cnt_fav, 0)
-                            + coalesce(cnt_danmu, 0) + coalesce(cnt_watch, 0) / video_active_super.duration) / cnt)
-                    end) as score
-                    from video_active_super join auxCnt on video_active_super.bv = auxCnt.bv
-                        left join (select count(*) as cnt_like, bv from user_like_video group by bv) as likeCnt
-							on video_active_super.bv = likeCnt.bv
-						left join (select count(*) as cnt_coin, bv from user_coin_video group by bv) as coinCnt
-							on video_active_super.bv = coinCnt.bv
-						left join (select count(*) as cnt_fav, bv from user_fav_video group by bv) as favCnt
-							on video_active_super.bv = favCnt.bv
-						left join (select count(*) as cnt_danmu, bv from danmu_info group by bv) as danmuCnt
-							on video_active_super.bv = danmuCnt.bv
-						left join (select sum(lastpos) as cnt_watch, bv from user_watch_video group by bv) as watchCnt
-							on video_active_super.bv = watchCnt.bv
-                    order by score desc
+            select array_agg(tmp.video_bv) from (
+                select video_bv from popularity_ranking()
                     limit page_size offset (page_num - 1) * page_size
             ) as tmp
         );
     end; $$ language plpgsql;
 
-create or replace function recommend_video_for_user (
-    auth_mid bigint,
-    auth_pwd varchar(260),
-    auth_qqid varchar(50),
-    auth_wxid varchar(50),
+create or replace function recommend_video_for_user_by_mid (
+    real_mid bigint,
     page_size int,
     page_num int
 )
     returns varchar(25)[] as $$
-    declare
-    	real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return null;
@@ -1434,19 +1513,26 @@ create or replace function recommend_video_for_user (
         end if;
     end $$ language plpgsql;
 
-create or replace function recommend_friends (
+create or replace function recommend_video_for_user (
     auth_mid bigint,
     auth_pwd varchar(260),
     auth_qqid varchar(50),
     auth_wxid varchar(50),
     page_size int,
     page_num int
+)
+    returns varchar(25)[] as $$
+    begin
+        return recommend_video_for_user_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), page_size, page_num);
+    end $$ language plpgsql;
+
+create or replace function recommend_friends_by_mid (
+    real_mid bigint,
+    page_size int,
+    page_num int
 )
     returns bigint[] as $$
-    declare
-    	real_mid bigint;
     begin
-        real_mid := (select verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid));
         if real_mid < 0 then
             -- raise notice 'Authentication failed.';
             return null;
@@ -1466,14 +1552,28 @@ create or replace function recommend_friends (
 	            order by cnt desc, level desc, mid limit page_size offset (page_num - 1) * page_size
 	        )tmp_rfs
 		);
+    end $$ language plpgsql;
+
+create or replace function recommend_friends (
+    auth_mid bigint,
+    auth_pwd varchar(260),
+    auth_qqid varchar(50),
+    auth_wxid varchar(50),
+    page_size int,
+    page_num int
+)
+    returns bigint[] as $$
+    begin
+        return recommend_friends_by_mid(verify_auth(auth_mid, auth_pwd, auth_qqid, auth_wxid), page_size, page_num);
     end $$ language plpgsql;
 		""";
-		try (Connection conn = dataSource.getConnection();
-			PreparedStatement stmt = conn.prepareStatement(createFunctions)) {
-			stmt.executeUpdate();
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+		new PostLoadBuilder(target, indexWorkers, maintenanceWorkMem)
+			.build(POST_LOAD_DDL, Map.of(
+				"functions", createFunctions,
+				"video_stats", CREATE_VIDEO_STATS,
+				"danmu_hist", CREATE_DANMU_HIST,
+				"user_identity", CREATE_USER_IDENTITY
+			));
 
 //		String addUserTrigger = "alter system set full_page_writes = off;";
 //		try (Connection conn = dataSource.getConnection();
@@ -1516,6 +1616,7 @@ END $$;
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		}
+		dataReplaced();
 	}
 
 	/**
@@ -0,0 +1,175 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges a batch of records into populated tables.
+ * <p>
+ * The records are first loaded into temporary tables named after the raw tables, which shadow them
+ * since {@code pg_temp} is searched first, so any {@link RecordLoader} can fill them unchanged.
+ * They are then merged with {@code insert ... on conflict} in the same transaction:
+ * users and videos are updated in place, watch records keep the latest position, the other relations
+ * are added if missing. Danmus have no natural key, a danmu equal to an existing one in every field
+ * is taken as that danmu, the others get new ids from {@code danmu_info_danmu_id_seq}.
+ * The counters in {@code video_stats} and {@code danmu_hist} of every video touched by the batch are recounted afterward,
+ * and so are the {@code user_identity} rows of every merged user.
+ */
+@Slf4j
+public class DeltaMerger {
+	private static final List<String> STAGED_TABLES = List.of(
+		"user_info", "user_follow", "video_info", "user_watch_video", "user_coin_video",
+		"user_like_video", "user_fav_video", "danmu_info", "user_like_danmu"
+	);
+
+	private static final String MERGE_SQL = """
+insert into public.user_info (mid, name, sex, birthday, level, sign, identity, pwd, qqid, wxid, coin)
+	select mid, name, sex, birthday, level, sign, identity, pwd, qqid, wxid, coin from pg_temp.user_info
+	on conflict (mid) do update set name = excluded.name, sex = excluded.sex, birthday = excluded.birthday,
+		level = excluded.level, sign = excluded.sign, identity = excluded.identity, pwd = excluded.pwd,
+		qqid = excluded.qqid, wxid = excluded.wxid, coin = excluded.coin;
+insert into public.user_follow select * from pg_temp.user_follow on conflict do nothing;
+
+insert into public.video_info (bv, title, ownMid, commitTime, revMid, reviewTime, publicTime, duration, descr)
+	select bv, title, ownMid, commitTime, revMid, reviewTime, publicTime, duration, descr from pg_temp.video_info
+	on conflict (bv) do update set title = excluded.title, ownMid = excluded.ownMid,
+		commitTime = excluded.commitTime, revMid = excluded.revMid, reviewTime = excluded.reviewTime,
+		publicTime = excluded.publicTime, duration = excluded.duration, descr = excluded.descr;
+insert into public.user_watch_video select * from pg_temp.user_watch_video
+	on conflict (mid, bv) do update set lastpos = excluded.lastpos;
+insert into public.user_coin_video select * from pg_temp.user_coin_video on conflict do nothing;
+insert into public.user_like_video select * from pg_temp.user_like_video on conflict do nothing;
+insert into public.user_fav_video select * from pg_temp.user_fav_video on conflict do nothing;
+
+create temp table danmu_match on commit drop as
+	select s.danmu_id as stage_id, min(d.danmu_id) as danmu_id
+	from pg_temp.danmu_info s join public.danmu_info d
+		on d.bv = s.bv and d.senderMid = s.senderMid and d.showTime = s.showTime
+			and d.content is not distinct from s.content and d.postTime is not distinct from s.postTime
+	group by s.danmu_id;
+update pg_temp.user_like_danmu l set danmu_id = m.danmu_id from danmu_match m where l.danmu_id = m.stage_id;
+insert into public.danmu_info (danmu_id, bv, senderMid, showTime, content, postTime)
+	select danmu_id, bv, senderMid, showTime, content, postTime from pg_temp.danmu_info s
+	where not exists (select 1 from danmu_match m where m.stage_id = s.danmu_id);
+insert into public.user_like_danmu select * from pg_temp.user_like_danmu on conflict do nothing;
+
+insert into public.video_stats (bv, watch_cnt, watch_sum, like_cnt, coin_cnt, fav_cnt, danmu_cnt)
+	select touched.bv,
+		(select count(*) from public.user_watch_video w where w.bv = touched.bv),
+		(select coalesce(sum(lastpos), 0) from public.user_watch_video w where w.bv = touched.bv),
+		(select count(*) from public.user_like_video l where l.bv = touched.bv),
+		(select count(*) from public.user_coin_video c where c.bv = touched.bv),
+		(select count(*) from public.user_fav_video f where f.bv = touched.bv),
+		(select count(*) from public.danmu_info d where d.bv = touched.bv)
+	from (
+		select bv from pg_temp.video_info union select bv from pg_temp.user_watch_video
+		union select bv from pg_temp.user_like_video union select bv from pg_temp.user_coin_video
+		union select bv from pg_temp.user_fav_video union select bv from pg_temp.danmu_info
+	) as touched
+	on conflict (bv) do update set watch_cnt = excluded.watch_cnt, watch_sum = excluded.watch_sum,
+		like_cnt = excluded.like_cnt, coin_cnt = excluded.coin_cnt, fav_cnt = excluded.fav_cnt,
+		danmu_cnt = excluded.danmu_cnt;
+
+delete from public.danmu_hist where bv in (select bv from pg_temp.danmu_info);
+insert into public.danmu_hist
+	select bv, cast(floor(showTime / 10) as int) as chunk, count(*) as cnt from public.danmu_info
+	where bv in (select bv from pg_temp.danmu_info) group by bv, chunk;
+
+delete from public.user_identity where mid in (select mid from pg_temp.user_info);
+insert into public.user_identity (provider, external_id, mid)
+	select 'QQ', qqid, mid from public.user_info
+		where active = true and qqid <> '' and mid in (select mid from pg_temp.user_info)
+	union all
+	select 'WECHAT', wxid, mid from public.user_info
+		where active = true and wxid <> '' and mid in (select mid from pg_temp.user_info);
+
+select setval('user_info_mid_seq', greatest(max(mid), (select last_value from user_info_mid_seq)))
+	from public.user_info;
+		""";
+
+	private final DataSource dataSource;
+	private final RecordLoader recordLoader;
+
+	public DeltaMerger(DataSource dataSource, RecordLoader recordLoader) {
+		this.dataSource = dataSource;
+		this.recordLoader = recordLoader;
+	}
+
+	/**
+	 * Stages and merges the records in one transaction.
+	 *
+	 * @return time in milliseconds spent on staging and on merging
+	 */
+	public Map<String, Long> merge(
+		List<DanmuRecord> danmuRecords,
+		List<UserRecord> userRecords,
+		List<VideoRecord> videoRecords
+	) {
+		Map<String, Long> phaseTimes = new LinkedHashMap<>();
+		try (Connection conn = dataSource.getConnection()) {
+			conn.setAutoCommit(false);
+			long phaseStart = System.currentTimeMillis();
+			try (Statement stmt = conn.createStatement()) {
+				for (String table : STAGED_TABLES) {
+					stmt.execute("create temp table " + table + " (like public." + table + " including defaults) on commit drop");
+				}
+			}
+			assignDanmuIds(conn, danmuRecords);
+			recordLoader.loadUsers(conn, userRecords);
+			recordLoader.loadFollows(conn, userRecords);
+			recordLoader.loadVideos(conn, videoRecords);
+			recordLoader.loadWatches(conn, videoRecords);
+			recordLoader.loadCoins(conn, videoRecords);
+			recordLoader.loadLikes(conn, videoRecords);
+			recordLoader.loadFavorites(conn, videoRecords);
+			recordLoader.loadDanmus(conn, danmuRecords);
+			recordLoader.loadDanmuLikes(conn, danmuRecords);
+			phaseTimes.put("stage", System.currentTimeMillis() - phaseStart);
+
+			phaseStart = System.currentTimeMillis();
+			try (Statement stmt = conn.createStatement()) {
+				stmt.execute(MERGE_SQL);
+			}
+			conn.commit();
+			conn.setAutoCommit(true);
+			phaseTimes.put("merge", System.currentTimeMillis() - phaseStart);
+
+			// merged rows may change the plans, analyze only samples a bounded number of rows per table
+			phaseStart = System.currentTimeMillis();
+			try (Statement stmt = conn.createStatement()) {
+				stmt.execute("analyze " + String.join(", ", STAGED_TABLES));
+			}
+			phaseTimes.put("analyze", System.currentTimeMillis() - phaseStart);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+		log.info("Merged {} users, {} videos and {} danmus: {}",
+			userRecords.size(), videoRecords.size(), danmuRecords.size(), phaseTimes);
+		return phaseTimes;
+	}
+
+	private static void assignDanmuIds(Connection conn, List<DanmuRecord> danmuRecords) throws SQLException {
+		String sql = "select nextval('danmu_info_danmu_id_seq') from generate_series(1, ?)";
+		try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+			stmt.setInt(1, danmuRecords.size());
+			try (ResultSet rs = stmt.executeQuery()) {
+				for (DanmuRecord danmuRecord : danmuRecords) {
+					rs.next();
+					danmuRecord.setDanmuId(rs.getLong(1));
+				}
+			}
+		}
+	}
+}
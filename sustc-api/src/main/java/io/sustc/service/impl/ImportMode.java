@@ -0,0 +1,21 @@
+package io.sustc.service.impl;
+
+/**
+ * How {@link DatabaseServiceImpl#importData} sends the records to the database,
+ * configured by {@code sustc.import.mode}.
+ */
+public enum ImportMode {
+	/**
+	 * {@code insert} statements sent with {@link java.sql.PreparedStatement#addBatch()}, see {@link BatchRecordLoader}.
+	 */
+	BATCH,
+
+	/**
+	 * Binary {@code copy ... from stdin}, see {@link BinaryCopyWriter}.
+	 */
+	COPY;
+
+	RecordLoader newLoader(int batchRows, long batchBytes) {
+		return this == COPY ? new CopyRecordLoader() : new BatchRecordLoader(batchRows, batchBytes);
+	}
+}
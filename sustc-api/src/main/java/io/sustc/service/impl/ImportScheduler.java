@@ -0,0 +1,362 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Loads the raw tables as a graph of chunk tasks on a work-stealing pool.
+ * <p>
+ * Every table is split into chunks of roughly {@code chunkRows} rows, each chunk is loaded in its own
+ * transaction on its own connection. The only dependency between the tasks is that danmu ids are assigned
+ * before {@code danmu_info} and {@code user_like_danmu} are loaded, all other chunks start right away.
+ * <p>
+ * Chunks are numbered per table in the order of the records, which is the same in every run with the same
+ * {@code chunkRows} and layout. Each chunk is checkpointed with {@link ImportState#markChunk} in its own transaction,
+ * and chunks already committed by an interrupted run are skipped.
+ */
+@Slf4j
+public class ImportScheduler {
+	/**
+	 * Chunk layout of the list import: every table is cut on its own rows.
+	 */
+	public static final String LAYOUT_PER_TABLE = "PER_TABLE";
+
+	/**
+	 * Chunk layout of the streaming import: all tables of a record type are cut together, on the sum of their rows.
+	 */
+	public static final String LAYOUT_STREAM = "STREAM";
+
+	/**
+	 * Connections of the pool left to the services while an import holds the others.
+	 */
+	private static final int SPARE_CONNECTIONS = 2;
+
+	@FunctionalInterface
+	interface ChunkLoader<T> {
+		void load(Connection conn, List<T> records) throws SQLException;
+	}
+
+	/**
+	 * A table filled from records of type {@code T}, with the number of rows each record produces.
+	 */
+	static final class TableSpec<T> {
+		final String table;
+		final ToIntFunction<T> rowsOf;
+		final ChunkLoader<T> loader;
+
+		TableSpec(String table, ToIntFunction<T> rowsOf, ChunkLoader<T> loader) {
+			this.table = table;
+			this.rowsOf = rowsOf;
+			this.loader = loader;
+		}
+	}
+
+	private final DataSource dataSource;
+	private final int workers;
+	private final int chunkRows;
+
+	private final List<TableSpec<UserRecord>> userTables;
+	private final List<TableSpec<VideoRecord>> videoTables;
+	private final List<TableSpec<DanmuRecord>> danmuTables;
+
+	private final Set<String> committedChunks;
+
+	private final Map<String, TableTimer> tableTimers = new ConcurrentHashMap<>();
+	private final AtomicInteger skippedChunks = new AtomicInteger();
+	private final AtomicInteger failedChunks = new AtomicInteger();
+
+	/**
+	 * @param committedChunks chunks to skip, keyed by {@link ImportState#chunkKey}
+	 */
+	public ImportScheduler(
+		DataSource dataSource,
+		RecordLoader recordLoader,
+		int workers,
+		int chunkRows,
+		Set<String> committedChunks
+	) {
+		this.dataSource = dataSource;
+		this.committedChunks = committedChunks;
+		this.workers = workers > 0 ? workers : defaultWorkers(dataSource);
+		this.chunkRows = Math.max(chunkRows, 1);
+		this.userTables = List.of(
+			new TableSpec<>("user_info", r -> 1, recordLoader::loadUsers),
+			new TableSpec<>("user_follow", r -> r.getFollowing().length, recordLoader::loadFollows)
+		);
+		this.videoTables = List.of(
+			new TableSpec<>("video_info", r -> 1, recordLoader::loadVideos),
+			new TableSpec<>("user_watch_video", r -> r.getViewerMids().length, recordLoader::loadWatches),
+			new TableSpec<>("user_coin_video", r -> r.getCoin().length, recordLoader::loadCoins),
+			new TableSpec<>("user_like_video", r -> r.getLike().length, recordLoader::loadLikes),
+			new TableSpec<>("user_fav_video", r -> r.getFavorite().length, recordLoader::loadFavorites)
+		);
+		this.danmuTables = List.of(
+			new TableSpec<>("danmu_info", r -> 1, recordLoader::loadDanmus),
+			new TableSpec<>("user_like_danmu", r -> r.getLikedBy().length, recordLoader::loadDanmuLikes)
+		);
+	}
+
+	/**
+	 * Loads all records and waits for every chunk to finish.
+	 *
+	 * @throws IllegalStateException if any chunk failed, the committed ones are kept for a resumed run
+	 * @return wall time in milliseconds of each table, from its first chunk started to its last chunk finished
+	 */
+	public Map<String, Long> run(
+		List<DanmuRecord> danmuRecords,
+		List<UserRecord> userRecords,
+		List<VideoRecord> videoRecords
+	) {
+		ForkJoinPool pool = newPool();
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+		try {
+			for (TableSpec<UserRecord> spec : userTables) {
+				submit(pool, tasks, spec, userRecords);
+			}
+			for (TableSpec<VideoRecord> spec : videoTables) {
+				submit(pool, tasks, spec, videoRecords);
+			}
+
+			// danmu ids are assigned by position, chunks of both danmu tables depend on them
+			CompletableFuture<Void> danmuIds = CompletableFuture.runAsync(() -> {
+				long danmuCnt = 0;
+				for (DanmuRecord danmuRecord : danmuRecords) {
+					danmuRecord.setDanmuId(++danmuCnt);
+				}
+			}, pool);
+			tasks.add(danmuIds.thenCompose(v -> {
+				List<CompletableFuture<Void>> danmuTasks = new ArrayList<>();
+				for (TableSpec<DanmuRecord> spec : danmuTables) {
+					submit(pool, danmuTasks, spec, danmuRecords);
+				}
+				return CompletableFuture.allOf(danmuTasks.toArray(new CompletableFuture[0]));
+			}));
+
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+		} finally {
+			pool.shutdown();
+		}
+		return wallTimes();
+	}
+
+	/**
+	 * Loads records pulled from the iterators, holding at most {@code maxChunksInFlight} chunks in memory.
+	 * <p>
+	 * The three sources are read concurrently, each chunk is loaded into all tables it contributes to
+	 * and dropped afterward, so the heap usage does not grow with the size of the dataset.
+	 * Danmu ids are assigned in the order the danmu records are pulled.
+	 *
+	 * @throws IllegalStateException if any chunk failed, the committed ones are kept for a resumed run
+	 * @return wall time in milliseconds of each table, from its first chunk started to its last chunk finished
+	 */
+	public Map<String, Long> run(
+		Iterator<DanmuRecord> danmuRecords,
+		Iterator<UserRecord> userRecords,
+		Iterator<VideoRecord> videoRecords,
+		int maxChunksInFlight
+	) {
+		int permits = Math.max(maxChunksInFlight, 1);
+		Semaphore inFlight = new Semaphore(permits);
+		ForkJoinPool pool = newPool();
+		ExecutorService producers = Executors.newFixedThreadPool(3);
+		try {
+			long[] danmuCnt = {0};
+			CompletableFuture.allOf(
+				CompletableFuture.runAsync(() -> stream(pool, inFlight, userTables, userRecords, null), producers),
+				CompletableFuture.runAsync(() -> stream(pool, inFlight, videoTables, videoRecords, null), producers),
+				CompletableFuture.runAsync(() -> stream(pool, inFlight, danmuTables, danmuRecords,
+					danmuRecord -> danmuRecord.setDanmuId(++danmuCnt[0])), producers)
+			).join();
+			// every chunk returns its permit when done
+			inFlight.acquireUninterruptibly(permits);
+		} finally {
+			producers.shutdown();
+			pool.shutdown();
+		}
+		return wallTimes();
+	}
+
+	/**
+	 * One worker per processor, but no more than the connection pool can serve, since every worker holds a
+	 * connection for as long as it runs and a worker waiting on the pool beyond its timeout fails.
+	 */
+	static int defaultWorkers(DataSource dataSource) {
+		int workers = Runtime.getRuntime().availableProcessors();
+		try {
+			if (dataSource.isWrapperFor(HikariDataSource.class)) {
+				int poolSize = dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize();
+				workers = Math.min(workers, Math.max(poolSize - SPARE_CONNECTIONS, 1));
+			}
+		} catch (SQLException e) {
+			log.warn("Cannot read the connection pool size: {}", e.getMessage());
+		}
+		return workers;
+	}
+
+	private ForkJoinPool newPool() {
+		return new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+	}
+
+	private <T> void stream(
+		ForkJoinPool pool,
+		Semaphore inFlight,
+		List<TableSpec<T>> specs,
+		Iterator<T> records,
+		Consumer<T> onPulled
+	) {
+		for (int chunkIndex = 0; records.hasNext(); ++chunkIndex) {
+			List<T> chunk = new ArrayList<>();
+			long rows = 0;
+			while (rows < chunkRows && records.hasNext()) {
+				T record = records.next();
+				if (onPulled != null) {
+					onPulled.accept(record);
+				}
+				chunk.add(record);
+				for (TableSpec<T> spec : specs) {
+					rows += spec.rowsOf.applyAsInt(record);
+				}
+			}
+			inFlight.acquireUninterruptibly();
+			List<CompletableFuture<Void>> tasks = new ArrayList<>();
+			for (TableSpec<T> spec : specs) {
+				long tableRows = chunk.stream().mapToLong(spec.rowsOf::applyAsInt).sum();
+				tasks.add(submitChunk(pool, spec, chunkIndex, chunk, tableRows));
+			}
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0]))
+				.whenComplete((v, e) -> inFlight.release());
+		}
+	}
+
+	private <T> void submit(ForkJoinPool pool, List<CompletableFuture<Void>> tasks, TableSpec<T> spec, List<T> records) {
+		List<Chunk<T>> chunks = split(records, spec.rowsOf, chunkRows);
+		for (int i = 0; i < chunks.size(); ++i) {
+			tasks.add(submitChunk(pool, spec, i, chunks.get(i).records, chunks.get(i).rows));
+		}
+	}
+
+	private <T> CompletableFuture<Void> submitChunk(
+		ForkJoinPool pool,
+		TableSpec<T> spec,
+		int chunkIndex,
+		List<T> records,
+		long rows
+	) {
+		if (committedChunks.contains(ImportState.chunkKey(spec.table, chunkIndex))) {
+			skippedChunks.incrementAndGet();
+			return CompletableFuture.completedFuture(null);
+		}
+		TableTimer timer = tableTimers.computeIfAbsent(spec.table, t -> new TableTimer());
+		timer.addChunk(rows);
+		return CompletableFuture.runAsync(() -> {
+			timer.started();
+			try (Connection conn = dataSource.getConnection()) {
+				conn.setAutoCommit(false);
+				spec.loader.load(conn, records);
+				ImportState.markChunk(conn, spec.table, chunkIndex, rows);
+				conn.commit();
+				conn.setAutoCommit(true);
+			} catch (SQLException | RuntimeException e) {
+				// counted rather than thrown, the streaming import does not join the chunks
+				failedChunks.incrementAndGet();
+				log.error("Fail to insert {} records of chunk {}, {}", spec.table, chunkIndex, e.toString());
+			} finally {
+				timer.finished();
+			}
+		}, pool);
+	}
+
+	private Map<String, Long> wallTimes() {
+		if (skippedChunks.get() > 0) {
+			log.info("Skipped {} chunks committed by a previous import", skippedChunks.get());
+		}
+		if (failedChunks.get() > 0) {
+			throw new IllegalStateException(failedChunks.get() + " chunks failed to load, import again to resume");
+		}
+		Map<String, Long> wallTimes = new LinkedHashMap<>();
+		tableTimers.forEach((table, timer) -> {
+			wallTimes.put(table, timer.wallTime());
+			log.info("Loaded {} rows into {} in {} chunks, {} ms", timer.rows, table, timer.chunks, timer.wallTime());
+		});
+		return wallTimes;
+	}
+
+	static final class Chunk<T> {
+		final List<T> records;
+		final long rows;
+
+		Chunk(List<T> records, long rows) {
+			this.records = records;
+			this.rows = rows;
+		}
+	}
+
+	/**
+	 * Splits {@code records} into consecutive sub-lists holding about {@code chunkRows} table rows each.
+	 * A single record is never split, even if it produces more rows than that.
+	 */
+	static <T> List<Chunk<T>> split(List<T> records, ToIntFunction<T> rowsOf, int chunkRows) {
+		List<Chunk<T>> chunks = new ArrayList<>();
+		int from = 0;
+		long rows = 0;
+		for (int i = 0; i < records.size(); ++i) {
+			rows += rowsOf.applyAsInt(records.get(i));
+			if (rows >= chunkRows) {
+				chunks.add(new Chunk<>(records.subList(from, i + 1), rows));
+				from = i + 1;
+				rows = 0;
+			}
+		}
+		if (from < records.size()) {
+			chunks.add(new Chunk<>(records.subList(from, records.size()), rows));
+		}
+		return chunks;
+	}
+
+	private static final class TableTimer {
+		private long rows;
+		private int chunks;
+		private long firstStart = Long.MAX_VALUE;
+		private long lastEnd;
+
+		synchronized void addChunk(long chunkRows) {
+			rows += chunkRows;
+			++chunks;
+		}
+
+		synchronized void started() {
+			firstStart = Math.min(firstStart, System.nanoTime());
+		}
+
+		synchronized void finished() {
+			lastEnd = Math.max(lastEnd, System.nanoTime());
+		}
+
+		synchronized long wallTime() {
+			return firstStart == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMillis(lastEnd - firstStart);
+		}
+	}
+}
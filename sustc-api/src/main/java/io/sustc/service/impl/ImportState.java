@@ -0,0 +1,238 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks the progress of an import in the (logged) {@code import_state} and {@code import_chunk} tables.
+ * <p>
+ * An import enters {@link #LOADING} before touching the raw tables and {@link #DONE} once everything is
+ * committed, so a later run can tell that a previous one stopped halfway. The server start time is recorded
+ * as well: a crash while the tables are {@code unlogged} restarts the server and empties them.
+ * <p>
+ * Every loaded chunk is checkpointed in {@code import_chunk} within its own transaction, so that
+ * an interrupted import can be resumed by skipping the chunks already committed.
+ */
+@Slf4j
+public class ImportState {
+	public static final String LOADING = "LOADING";
+	public static final String BUILDING = "BUILDING";
+	public static final String FINALIZING = "FINALIZING";
+	public static final String DONE = "DONE";
+
+	private final DataSource dataSource;
+
+	public ImportState(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * @return the phase reached by the last import, or {@code null} if there was none
+	 */
+	public String lastPhase() {
+		String createStateSQL = """
+create table if not exists import_state (
+	id int primary key,
+	phase text not null,
+	chunk_rows int not null,
+	unlogged boolean not null,
+	server_start timestamptz not null,
+	updated_at timestamp not null default now()
+);
+		""";
+		// tables created before the layout was recorded, such imports are not resumed
+		String addLayoutSQL = "alter table import_state add column if not exists layout text not null default ''";
+		String createChunkSQL = """
+create table if not exists import_chunk (
+	tbl text not null,
+	chunk int not null,
+	rows bigint not null,
+	primary key (tbl, chunk)
+);
+		""";
+		try (Connection conn = dataSource.getConnection();
+		     Statement stmt = conn.createStatement()) {
+			stmt.execute(createStateSQL);
+			stmt.execute(addLayoutSQL);
+			stmt.execute(createChunkSQL);
+			try (ResultSet rs = stmt.executeQuery("select phase from import_state where id = 1")) {
+				return rs.next() ? rs.getString(1) : null;
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Enters {@link #LOADING}, recording the settings a resumed import has to share with this one.
+	 *
+	 * @param layout how the records are cut into chunks, see {@link ImportScheduler#LAYOUT_PER_TABLE}
+	 *               and {@link ImportScheduler#LAYOUT_STREAM}
+	 */
+	public void begin(int chunkRows, String layout, boolean unlogged) {
+		String sql = """
+insert into import_state (id, phase, chunk_rows, layout, unlogged, server_start)
+	values (1, 'LOADING', ?, ?, ?, pg_postmaster_start_time())
+	on conflict (id) do update set phase = excluded.phase, chunk_rows = excluded.chunk_rows,
+		layout = excluded.layout, unlogged = excluded.unlogged, server_start = excluded.server_start,
+		updated_at = now();
+		""";
+		try (Connection conn = dataSource.getConnection();
+		     PreparedStatement stmt = conn.prepareStatement(sql)) {
+			stmt.setInt(1, chunkRows);
+			stmt.setString(2, layout);
+			stmt.setBoolean(3, unlogged);
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void enter(String phase) {
+		String sql = "update import_state set phase = ?, updated_at = now() where id = 1";
+		try (Connection conn = dataSource.getConnection();
+		     PreparedStatement stmt = conn.prepareStatement(sql)) {
+			stmt.setString(1, phase);
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * An unfinished import can be resumed if it split the records the same way, with the same chunk size and
+	 * layout, and its chunks were not lost, i.e. the tables were logged or the server has not restarted since.
+	 */
+	public boolean canResume(int chunkRows, String layout) {
+		String sql = """
+select phase <> 'DONE' and chunk_rows = ? and layout = ?
+	and not (unlogged and server_start <> pg_postmaster_start_time())
+	from import_state where id = 1;
+		""";
+		try (Connection conn = dataSource.getConnection();
+		     PreparedStatement stmt = conn.prepareStatement(sql)) {
+			stmt.setInt(1, chunkRows);
+			stmt.setString(2, layout);
+			try (ResultSet rs = stmt.executeQuery()) {
+				return rs.next() && rs.getBoolean(1);
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return keys of the committed chunks, see {@link #chunkKey}
+	 */
+	public Set<String> committedChunks() {
+		Set<String> chunks = new HashSet<>();
+		try (Connection conn = dataSource.getConnection();
+		     PreparedStatement stmt = conn.prepareStatement("select tbl, chunk from import_chunk");
+		     ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				chunks.add(chunkKey(rs.getString(1), rs.getInt(2)));
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Checkpoints a chunk inside the transaction that loads it, the caller commits both together.
+	 */
+	public static void markChunk(Connection conn, String table, int chunk, long rows) throws SQLException {
+		try (PreparedStatement stmt = conn.prepareStatement("insert into import_chunk values (?, ?, ?)")) {
+			stmt.setString(1, table);
+			stmt.setInt(2, chunk);
+			stmt.setLong(3, rows);
+			stmt.executeUpdate();
+		}
+	}
+
+	public static String chunkKey(String table, int chunk) {
+		return table + "#" + chunk;
+	}
+
+	public void clearChunks() {
+		try (Connection conn = dataSource.getConnection();
+		     Statement stmt = conn.createStatement()) {
+			stmt.execute("truncate table import_chunk");
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return whether the server was restarted since the current import entered {@link #LOADING}
+	 */
+	public boolean serverRestarted() {
+		String sql = "select server_start <> pg_postmaster_start_time() from import_state where id = 1";
+		try (Connection conn = dataSource.getConnection();
+		     PreparedStatement stmt = conn.prepareStatement(sql);
+		     ResultSet rs = stmt.executeQuery()) {
+			return rs.next() && rs.getBoolean(1);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Switches all {@code tables} to {@code unlogged} or back to {@code logged} in one transaction.
+	 * Indexes follow their tables.
+	 */
+	public void setLogged(List<String> tables, boolean logged) {
+		try (Connection conn = dataSource.getConnection();
+		     Statement stmt = conn.createStatement()) {
+			conn.setAutoCommit(false);
+			for (String table : tables) {
+				stmt.execute("alter table " + table + (logged ? " set logged" : " set unlogged"));
+			}
+			conn.commit();
+			conn.setAutoCommit(true);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Empties {@code tables} and the checkpoints, and drops what an interrupted post-load phase may have left behind.
+	 */
+	public void reset(List<String> tables, List<String> dropStatements) {
+		log.warn("Previous import cannot be resumed, cleaning {}", tables);
+		execute("truncate table import_chunk, " + String.join(", ", tables), dropStatements);
+	}
+
+	/**
+	 * Drops what an interrupted post-load phase may have left behind, keeping the loaded rows.
+	 */
+	public void dropPostLoad(List<String> dropStatements) {
+		execute(null, dropStatements);
+	}
+
+	private void execute(String truncate, List<String> dropStatements) {
+		try (Connection conn = dataSource.getConnection();
+		     Statement stmt = conn.createStatement()) {
+			conn.setAutoCommit(false);
+			if (truncate != null) {
+				stmt.execute(truncate);
+			}
+			for (String sql : dropStatements) {
+				stmt.execute(sql);
+			}
+			conn.commit();
+			conn.setAutoCommit(true);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package io.sustc.service.impl;
+
+import io.sustc.service.DanmuCursor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads danmu ids through a server-side cursor.
+ * <p>
+ * The query runs in a read-only transaction with a fetch size, so the driver keeps a portal open on the server
+ * and pulls {@code fetchSize} rows at a time instead of the whole result.
+ * The connection goes back to the pool once the rows run out or the cursor is closed.
+ */
+@Slf4j
+public class JdbcDanmuCursor implements DanmuCursor {
+	/**
+	 * The cursor of a corner case, which has no ids.
+	 */
+	public static final DanmuCursor EMPTY = new DanmuCursor() {
+		@Override
+		public int read(long[] ids) {
+			return -1;
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	private Connection conn;
+	private PreparedStatement stmt;
+	private ResultSet rs;
+
+	/**
+	 * The error that ended the rows, thrown once the ids read before it were returned.
+	 */
+	private SQLException failure;
+
+	/**
+	 * Executes the prepared query and takes over the connection, which shall be in a transaction.
+	 */
+	JdbcDanmuCursor(Connection conn, PreparedStatement stmt, int fetchSize) throws SQLException {
+		this.conn = conn;
+		this.stmt = stmt;
+		stmt.setFetchSize(fetchSize);
+		rs = stmt.executeQuery();
+	}
+
+	@Override
+	public int read(long[] ids) {
+		if (failure != null) {
+			throw new IllegalStateException("Danmu stream failed", failure);
+		}
+		if (rs == null) {
+			return -1;
+		}
+		int count = 0;
+		try {
+			while (count < ids.length && rs.next()) {
+				ids[count++] = rs.getLong(1);
+			}
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+			close();
+			failure = e;
+			if (count == 0) {
+				throw new IllegalStateException("Danmu stream failed", e);
+			}
+			return count;
+		}
+		if (count < ids.length) {
+			close();
+		}
+		return count == 0 && ids.length > 0 ? -1 : count;
+	}
+
+	@Override
+	public void close() {
+		if (conn == null) {
+			return;
+		}
+		try (Connection conn = this.conn;
+		     PreparedStatement stmt = this.stmt;
+		     ResultSet rs = this.rs) {
+			conn.rollback();
+			conn.setAutoCommit(true);
+			conn.setReadOnly(false);
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+		} finally {
+			this.conn = null;
+			this.stmt = null;
+			this.rs = null;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The videos ranked by popularity ({@code popularity_ranking()}), held in memory so that a page of
+ * {@link RecommenderServiceImpl#generalRecommendations} is a range of an array.
+ * <p>
+ * The ranking is refreshed in the background every {@code sustc.leaderboard.refresh-interval-ms}, and as soon as
+ * {@code sustc.leaderboard.refresh-events} likes, coins, favorites, danmus or deletions have been recorded.
+ * A ranking older than {@code sustc.leaderboard.max-staleness-ms} is never served: the caller refreshes it first.
+ */
+@Component
+@Slf4j
+public class PopularityLeaderboard {
+	@Autowired
+	private DataSource dataSource;
+
+	@Value("${sustc.leaderboard.refresh-interval-ms:5000}")
+	private long refreshIntervalMillis = 5000;
+
+	@Value("${sustc.leaderboard.refresh-events:1000}")
+	private long refreshEvents = 1000;
+
+	@Value("${sustc.leaderboard.max-staleness-ms:10000}")
+	private long maxStalenessMillis = 10000;
+
+	private static final class Ranking {
+		final String[] bvs;
+		final double[] scores;
+		final long refreshedAt;
+
+		Ranking(String[] bvs, double[] scores, long refreshedAt) {
+			this.bvs = bvs;
+			this.scores = scores;
+			this.refreshedAt = refreshedAt;
+		}
+	}
+
+	private volatile Ranking ranking;
+
+	/**
+	 * Bumped by {@link #invalidate()}, a refresh started before that is not published.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong pendingEvents = new AtomicLong();
+
+	private final ReentrantLock refreshLock = new ReentrantLock();
+
+	private ScheduledExecutorService scheduler;
+
+	private volatile long lastRefreshTime;
+
+	private volatile long lastRefreshMillis;
+
+	private final AtomicLong refreshCount = new AtomicLong();
+
+	@PostConstruct
+	public void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "leaderboard-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (refreshIntervalMillis > 0) {
+			scheduler.scheduleWithFixedDelay(this::refreshQuietly,
+				refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return the {@code bv}s of the page, or {@code null} if no ranking is available
+	 */
+	public List<String> page(int pageSize, int pageNum) {
+		Ranking current = ranking;
+		if (current == null || System.currentTimeMillis() - current.refreshedAt > maxStalenessMillis) {
+			refreshQuietly();
+			current = ranking;
+			if (current == null) {
+				return null;
+			}
+		}
+		long from = (long) (pageNum - 1) * pageSize;
+		if (from >= current.bvs.length) {
+			return new ArrayList<>();
+		}
+		int to = (int) Math.min(from + pageSize, current.bvs.length);
+		return new ArrayList<>(Arrays.asList(current.bvs).subList((int) from, to));
+	}
+
+	/**
+	 * Records a change to the engagement of a video.
+	 */
+	public void recordEvent() {
+		if (refreshEvents > 0 && pendingEvents.incrementAndGet() >= refreshEvents) {
+			pendingEvents.set(0);
+			scheduler.execute(this::refreshQuietly);
+		}
+	}
+
+	/**
+	 * Drops the ranking after the data was replaced, it is rebuilt on the next request.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		ranking = null;
+	}
+
+	/**
+	 * @return when the ranking was last refreshed, in milliseconds since the epoch, {@code 0} if never
+	 */
+	public long getLastRefreshTime() {
+		return lastRefreshTime;
+	}
+
+	/**
+	 * @return how long the last refresh took, in milliseconds
+	 */
+	public long getLastRefreshMillis() {
+		return lastRefreshMillis;
+	}
+
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	private void refreshQuietly() {
+		try {
+			refresh();
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+		}
+	}
+
+	private void refresh() throws SQLException {
+		long startGeneration = generation.get();
+		long staleBefore = System.currentTimeMillis();
+		refreshLock.lock();
+		try {
+			Ranking current = ranking;
+			// someone else refreshed while we were waiting
+			if (current != null && current.refreshedAt >= staleBefore) {
+				return;
+			}
+			long start = System.currentTimeMillis();
+			List<String> bvs = new ArrayList<>();
+			List<Double> scores = new ArrayList<>();
+			String rankingSQL = "select video_bv, video_score from popularity_ranking()";
+			try (Connection conn = dataSource.getConnection();
+			     PreparedStatement stmt = conn.prepareStatement(rankingSQL);
+			     ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					bvs.add(rs.getString(1));
+					scores.add(rs.getDouble(2));
+				}
+			}
+			if (generation.get() != startGeneration) {
+				return;
+			}
+			pendingEvents.set(0);
+			ranking = new Ranking(bvs.toArray(new String[0]),
+				scores.stream().mapToDouble(Double::doubleValue).toArray(), start);
+			lastRefreshTime = start;
+			lastRefreshMillis = System.currentTimeMillis() - start;
+			refreshCount.incrementAndGet();
+			log.debug("Refreshed the ranking of {} videos in {} ms", bvs.size(), lastRefreshMillis);
+		} finally {
+			refreshLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds keys, indexes and functions after the raw tables are loaded.
+ * <p>
+ * The constraints of a table are added one after another since each of them locks the whole table,
+ * then the indexes of that table are built concurrently. Different tables proceed independently and the
+ * scripts, such as views, functions and derived tables, run alongside. Every statement runs on its own pooled connection
+ * with {@code maintenance_work_mem} raised for that transaction only.
+ */
+@Slf4j
+public class PostLoadBuilder {
+	private static final Pattern OBJECT_NAME = Pattern.compile("(?:constraint|index)\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * The constraints and indexes of one table.
+	 */
+	public static final class TableDdl {
+		final String table;
+		final List<String> constraints;
+		final List<String> indexes;
+
+		public TableDdl(String table, List<String> constraints, List<String> indexes) {
+			this.table = table;
+			this.constraints = constraints;
+			this.indexes = indexes;
+		}
+	}
+
+	private final DataSource dataSource;
+	private final int workers;
+	private final String maintenanceWorkMem;
+
+	private final Map<String, Long> buildTimes = new ConcurrentHashMap<>();
+
+	public PostLoadBuilder(DataSource dataSource, int workers, String maintenanceWorkMem) {
+		this.dataSource = dataSource;
+		// index builds hold their connections for minutes, a statement waiting on the pool would time out
+		this.workers = workers > 0 ? workers : ImportScheduler.defaultWorkers(dataSource);
+		this.maintenanceWorkMem = maintenanceWorkMem;
+	}
+
+	/**
+	 * Runs all the DDL and waits for it to finish.
+	 *
+	 * @param tables  constraints and indexes grouped by table
+	 * @param scripts scripts keyed by name, each executed as a whole and independent of the others
+	 * @return build time in milliseconds of every constraint, index and script, keyed by its name
+	 */
+	public Map<String, Long> build(List<TableDdl> tables, Map<String, String> scripts) {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+		try {
+			scripts.forEach((name, script) -> tasks.add(CompletableFuture.runAsync(() -> execute(name, script), pool)));
+			for (TableDdl ddl : tables) {
+				CompletableFuture<Void> constraints = CompletableFuture.runAsync(() -> {
+					for (String sql : ddl.constraints) {
+						execute(nameOf(sql), sql);
+					}
+				}, pool);
+				for (String sql : ddl.indexes) {
+					tasks.add(constraints.thenRunAsync(() -> execute(nameOf(sql), sql), pool));
+				}
+				tasks.add(constraints);
+			}
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		} finally {
+			pool.shutdown();
+		}
+
+		Map<String, Long> result = new LinkedHashMap<>();
+		buildTimes.entrySet().stream()
+			.sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+			.forEach(it -> {
+				result.put(it.getKey(), it.getValue());
+				log.info("Built {} in {} ms", it.getKey(), it.getValue());
+			});
+		return result;
+	}
+
+	private void execute(String name, String sql) {
+		try (Connection conn = dataSource.getConnection()) {
+			conn.setAutoCommit(false);
+			try (Statement stmt = conn.createStatement()) {
+				stmt.execute("set local maintenance_work_mem = '" + maintenanceWorkMem + "'");
+			}
+			long start = System.nanoTime();
+			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+				stmt.executeUpdate();
+			}
+			conn.commit();
+			conn.setAutoCommit(true);
+			buildTimes.put(name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return statements dropping every constraint and index of {@code tables}, if they exist
+	 */
+	public static List<String> dropStatements(List<TableDdl> tables) {
+		List<String> drops = new ArrayList<>();
+		for (TableDdl ddl : tables) {
+			for (String sql : ddl.indexes) {
+				drops.add("drop index if exists " + nameOf(sql));
+			}
+			for (String sql : ddl.constraints) {
+				drops.add("alter table " + ddl.table + " drop constraint if exists " + nameOf(sql));
+			}
+		}
+		return drops;
+	}
+
+	private static String nameOf(String sql) {
+		Matcher m = OBJECT_NAME.matcher(sql);
+		return m.find() ? m.group(1) : sql;
+	}
+}
@@ -23,6 +23,15 @@ public class RecommenderServiceImpl implements RecommenderService {
 	@Autowired
 	private DataSource dataSource;
 
+	@Autowired
+	private StatementDao statements;
+
+	@Autowired
+	private AuthCache authCache;
+
+	@Autowired
+	private PopularityLeaderboard leaderboard;
+
 	/**
 	 * Recommends a list of top 5 similar videos for a video.
 	 * The similarity is defined as the number of users (in the database) who have watched both videos.
@@ -39,7 +48,7 @@ public class RecommenderServiceImpl implements RecommenderService {
 	public List<String> recommendNextVideo(String bv) {
 		String recommendSQL = "select recommend_next_video(?)";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(recommendSQL)) {
+		     PreparedStatement stmt = statements.prepare(conn, recommendSQL)) {
 			stmt.setString(1, bv);
 			try (ResultSet rs = stmt.executeQuery()) {
 				if (rs.next()) {
@@ -91,9 +100,13 @@ public class RecommenderServiceImpl implements RecommenderService {
 		if (pageSize <= 0 || pageNum <= 0) {
 			return Collections.emptyList();
 		}
+		List<String> page = leaderboard.page(pageSize, pageNum);
+		if (page != null) {
+			return page;
+		}
 		String recommendSQL = "select general_recommendations(?, ?)";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(recommendSQL)) {
+		     PreparedStatement stmt = statements.prepare(conn, recommendSQL)) {
 			stmt.setInt(1, pageSize);
 			stmt.setInt(2, pageNum);
 			try (ResultSet rs = stmt.executeQuery()) {
@@ -144,15 +157,12 @@ public class RecommenderServiceImpl implements RecommenderService {
 		if (pageSize <= 0 || pageNum <= 0) {
 			return Collections.emptyList();
 		}
-		String recommendSQL = "select recommend_video_for_user(?, ?, ?, ?, ?, ?)";
+		String recommendSQL = "select recommend_video_for_user_by_mid(?, ?, ?)";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(recommendSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setInt(5, pageSize);
-			stmt.setInt(6, pageNum);
+		     PreparedStatement stmt = statements.prepare(conn, recommendSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setInt(2, pageSize);
+			stmt.setInt(3, pageNum);
 			try (ResultSet rs = stmt.executeQuery()) {
 				if (rs.next()) {
 					if (rs.getArray(1) == null) {
@@ -193,15 +203,12 @@ public class RecommenderServiceImpl implements RecommenderService {
 		if (pageSize <= 0 || pageNum <= 0) {
 			return Collections.emptyList();
 		}
-		String recommendSQL = "select recommend_friends(?, ?, ?, ?, ?, ?)";
+		String recommendSQL = "select recommend_friends_by_mid(?, ?, ?)";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(recommendSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setInt(5, pageSize);
-			stmt.setInt(6, pageNum);
+		     PreparedStatement stmt = statements.prepare(conn, recommendSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setInt(2, pageSize);
+			stmt.setInt(3, pageNum);
 			try (ResultSet rs = stmt.executeQuery()) {
 				if (rs.next()) {
 					if (rs.getArray(1) == null) {
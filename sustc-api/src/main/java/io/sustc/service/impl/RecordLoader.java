@@ -0,0 +1,37 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Writes imported records into the raw tables.
+ * <p>
+ * Every method only sends rows through the given connection, opening and committing
+ * the transaction is left to the caller. Danmu ids shall be assigned to the records
+ * before {@link #loadDanmus} and {@link #loadDanmuLikes} are called.
+ */
+public interface RecordLoader {
+
+	void loadUsers(Connection conn, List<UserRecord> userRecords) throws SQLException;
+
+	void loadFollows(Connection conn, List<UserRecord> userRecords) throws SQLException;
+
+	void loadVideos(Connection conn, List<VideoRecord> videoRecords) throws SQLException;
+
+	void loadWatches(Connection conn, List<VideoRecord> videoRecords) throws SQLException;
+
+	void loadCoins(Connection conn, List<VideoRecord> videoRecords) throws SQLException;
+
+	void loadLikes(Connection conn, List<VideoRecord> videoRecords) throws SQLException;
+
+	void loadFavorites(Connection conn, List<VideoRecord> videoRecords) throws SQLException;
+
+	void loadDanmus(Connection conn, List<DanmuRecord> danmuRecords) throws SQLException;
+
+	void loadDanmuLikes(Connection conn, List<DanmuRecord> danmuRecords) throws SQLException;
+}
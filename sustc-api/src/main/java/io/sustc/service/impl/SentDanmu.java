@@ -0,0 +1,25 @@
+package io.sustc.service.impl;
+
+import java.sql.Timestamp;
+
+/**
+ * A danmu just inserted, as stored in {@code danmu_info}, so that the in-memory structures can add it
+ * without reading it back.
+ */
+public final class SentDanmu {
+	public final long id;
+	public final String bv;
+	public final long senderMid;
+	public final float showTime;
+	public final String content;
+	public final Timestamp postTime;
+
+	SentDanmu(long id, String bv, long senderMid, float showTime, String content, Timestamp postTime) {
+		this.id = id;
+		this.bv = bv;
+		this.senderMid = senderMid;
+		this.showTime = showTime;
+		this.content = content;
+		this.postTime = postTime;
+	}
+}
@@ -0,0 +1,155 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sessions opened by {@link UserServiceImpl#login}, held in memory only.
+ * <p>
+ * A token is 32 random bytes, so it cannot be guessed from a mid. The sessions are spread over
+ * {@code sustc.session.shards} shards by token, each behind its own lock, so that lookups of different
+ * sessions rarely contend. A session expires {@code sustc.session.ttl-ms} after its last use; expired sessions are
+ * refused right away and swept in the background. Deleting an account ends all of its sessions.
+ */
+@Component
+@Slf4j
+public class SessionTable {
+	@Value("${sustc.session.ttl-ms:1800000}")
+	private long ttlMillis = 1800000;
+
+	@Value("${sustc.session.shards:64}")
+	private int shardCount = 64;
+
+	private static final class Session {
+		final AuthCache.User user;
+		volatile long expiresAt;
+
+		Session(AuthCache.User user, long expiresAt) {
+			this.user = user;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final class Shard {
+		final Map<String, Session> sessions = new HashMap<>();
+	}
+
+	private final SecureRandom random = new SecureRandom();
+
+	private Shard[] shards;
+
+	private ScheduledExecutorService sweeper;
+
+	@PostConstruct
+	public void start() {
+		shards = new Shard[Math.max(shardCount, 1)];
+		for (int i = 0; i < shards.length; ++i) {
+			shards[i] = new Shard();
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "session-sweep");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(ttlMillis / 4, 1000);
+		sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		sweeper.shutdownNow();
+	}
+
+	/**
+	 * @return the token of a new session of the user
+	 */
+	public String open(AuthCache.User user) {
+		byte[] bytes = new byte[32];
+		random.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		Shard shard = shardOf(token);
+		synchronized (shard) {
+			shard.sessions.put(token, new Session(user, System.currentTimeMillis() + ttlMillis));
+		}
+		return token;
+	}
+
+	/**
+	 * @return the user of the session, extending it, or {@code null} if the token is unknown or expired
+	 */
+	public AuthCache.User user(String token) {
+		Shard shard = shardOf(token);
+		Session session;
+		synchronized (shard) {
+			session = shard.sessions.get(token);
+		}
+		long now = System.currentTimeMillis();
+		if (session == null || session.expiresAt < now) {
+			return null;
+		}
+		session.expiresAt = now + ttlMillis;
+		return session.user;
+	}
+
+	/**
+	 * @return whether the session existed
+	 */
+	public boolean close(String token) {
+		Shard shard = shardOf(token);
+		synchronized (shard) {
+			return shard.sessions.remove(token) != null;
+		}
+	}
+
+	/**
+	 * Ends every session of a deleted user.
+	 */
+	public void revoke(long mid) {
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				shard.sessions.values().removeIf(it -> it.user.mid == mid);
+			}
+		}
+	}
+
+	/**
+	 * Ends every session, after the users were replaced.
+	 */
+	public void clear() {
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				shard.sessions.clear();
+			}
+		}
+	}
+
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		int swept = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				int before = shard.sessions.size();
+				shard.sessions.values().removeIf(it -> it.expiresAt < now);
+				swept += before - shard.sessions.size();
+			}
+		}
+		if (swept > 0) {
+			log.debug("Swept {} expired sessions", swept);
+		}
+	}
+
+	private Shard shardOf(String token) {
+		return shards[(token.hashCode() & Integer.MAX_VALUE) % shards.length];
+	}
+}
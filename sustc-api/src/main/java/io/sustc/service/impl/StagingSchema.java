@@ -0,0 +1,153 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A shadow copy of the {@code public} schema that is loaded while the services keep reading the current data,
+ * then swapped in with two {@code alter schema ... rename} in one transaction.
+ * <p>
+ * Everything created through {@link #dataSource()} lands in the staging schema, since its connections
+ * search that schema only. Views and indexes are bound to their tables and follow them through the rename,
+ * while the functions resolve the tables by {@code search_path} when they run, so after the swap they read
+ * the new data. The database user shall own the {@code public} schema to rename it.
+ */
+@Slf4j
+public class StagingSchema {
+	private static final String RETIRED_SCHEMA = "sustc_retired";
+
+	/**
+	 * Serial columns of the raw tables, which get their own sequences in the staging schema.
+	 */
+	private static final Map<String, String> SERIAL_COLUMNS = Map.of(
+		"user_info", "mid",
+		"danmu_info", "danmu_id"
+	);
+
+	private final DataSource dataSource;
+	private final String schema;
+
+	public StagingSchema(DataSource dataSource, String schema) {
+		this.dataSource = dataSource;
+		this.schema = schema;
+	}
+
+	/**
+	 * Drops any previous staging schema and creates empty copies of {@code tables} in a new one.
+	 */
+	public void create(List<String> tables) {
+		try (Connection conn = dataSource.getConnection();
+		     Statement stmt = conn.createStatement()) {
+			conn.setAutoCommit(false);
+			stmt.execute("drop schema if exists " + schema + " cascade");
+			stmt.execute("create schema " + schema);
+			for (String table : tables) {
+				stmt.execute("create table " + schema + "." + table
+					+ " (like public." + table + " including defaults)");
+				String column = SERIAL_COLUMNS.get(table);
+				if (column != null) {
+					String sequence = schema + "." + table + "_" + column + "_seq";
+					stmt.execute("create sequence " + sequence + " owned by " + schema + "." + table + "." + column);
+					stmt.execute("alter table " + schema + "." + table
+						+ " alter column " + column + " set default nextval('" + sequence + "')");
+				}
+			}
+			conn.commit();
+			conn.setAutoCommit(true);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return connections whose {@code search_path} is the staging schema
+	 */
+	public DataSource dataSource() {
+		return new SchemaDataSource();
+	}
+
+	/**
+	 * Makes the staging schema the new {@code public} atomically, then drops the old data.
+	 * Statements running on the old tables finish before they are dropped.
+	 */
+	public void swap() {
+		long start = System.currentTimeMillis();
+		try (Connection conn = dataSource.getConnection();
+		     Statement stmt = conn.createStatement()) {
+			stmt.execute("drop schema if exists " + RETIRED_SCHEMA + " cascade");
+			conn.setAutoCommit(false);
+			stmt.execute("alter schema public rename to " + RETIRED_SCHEMA);
+			stmt.execute("alter schema " + schema + " rename to public");
+			conn.commit();
+			conn.setAutoCommit(true);
+			log.info("Swapped {} in as public in {} ms", schema, System.currentTimeMillis() - start);
+			stmt.execute("drop schema " + RETIRED_SCHEMA + " cascade");
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Hands out pooled connections switched to the staging schema, the pool restores the schema on return.
+	 */
+	private class SchemaDataSource implements DataSource {
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			Connection conn = dataSource.getConnection();
+			conn.setSchema(schema);
+			return conn;
+		}
+
+		@Override
+		public Connection getConnection(String username, String password) throws SQLException {
+			Connection conn = dataSource.getConnection(username, password);
+			conn.setSchema(schema);
+			return conn;
+		}
+
+		@Override
+		public PrintWriter getLogWriter() throws SQLException {
+			return dataSource.getLogWriter();
+		}
+
+		@Override
+		public void setLogWriter(PrintWriter out) throws SQLException {
+			dataSource.setLogWriter(out);
+		}
+
+		@Override
+		public void setLoginTimeout(int seconds) throws SQLException {
+			dataSource.setLoginTimeout(seconds);
+		}
+
+		@Override
+		public int getLoginTimeout() throws SQLException {
+			return dataSource.getLoginTimeout();
+		}
+
+		@Override
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			return dataSource.getParentLogger();
+		}
+
+		@Override
+		public <T> T unwrap(Class<T> iface) throws SQLException {
+			return dataSource.unwrap(iface);
+		}
+
+		@Override
+		public boolean isWrapperFor(Class<?> iface) throws SQLException {
+			return dataSource.isWrapperFor(iface);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prepares the statements of the services and counts them per SQL.
+ * <p>
+ * The statements are ordinary ones of the borrowed connection, closed by the caller as usual. Reusing them is
+ * left to the driver, which keeps the parsed and server-prepared queries of every physical connection across
+ * {@code close()} (see {@code preparedStatementCacheQueries}). With {@code prepareThreshold} set to {@code 1} in
+ * {@code spring.datasource.hikari.data-source-properties}, a query is named on the server at its first execution,
+ * so every later call on that connection only binds the parameters and executes.
+ */
+@Component
+@Slf4j
+public class StatementDao {
+	private final Map<String, LongAdder> prepared = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the statement of {@code sql} on {@code conn}, to be closed by the caller
+	 */
+	public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+		prepared.computeIfAbsent(sql, it -> new LongAdder()).increment();
+		return conn.prepareStatement(sql);
+	}
+
+	/**
+	 * @return the number of statements prepared for each SQL, each of them executed once by its caller
+	 */
+	public Map<String, Long> stats() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		prepared.forEach((sql, count) -> result.put(sql, count.sum()));
+		return result;
+	}
+
+	@PreDestroy
+	public void stop() {
+		stats().forEach((sql, count) -> log.info("Prepared and executed {} times: {}", count, sql));
+	}
+}
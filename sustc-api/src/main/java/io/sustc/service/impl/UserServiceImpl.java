@@ -14,6 +14,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.List;
 
 @Service
 @Slf4j
@@ -23,6 +24,21 @@ public class UserServiceImpl implements UserService {
 	@Autowired
 	private DataSource dataSource;
 
+	@Autowired
+	private StatementDao statements;
+
+	@Autowired
+	private AuthCache authCache;
+
+	@Autowired
+	private PopularityLeaderboard leaderboard;
+
+	@Autowired
+	private DanmuTimeIndex danmuIndex;
+
+	@Autowired
+	private DanmuLog danmuLog;
+
 	/**
 	 * Registers a new user.
 	 * {@code password} is a mandatory field, while {@code qq} and {@code wechat} are optional
@@ -48,7 +64,7 @@ public class UserServiceImpl implements UserService {
 		}
 		String userRegisterSQL = "select user_reg_sustc(?, ?, ?, ?, ?, ?, ?)";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(userRegisterSQL)) {
+		     PreparedStatement stmt = statements.prepare(conn, userRegisterSQL)) {
 			stmt.setString(1, req.getName());
 			stmt.setString(2, req.getSex().toString());
 			stmt.setString(3, req.getBirthday());
@@ -65,6 +81,36 @@ public class UserServiceImpl implements UserService {
 		}
 	}
 
+	/**
+	 * Opens a session of the user.
+	 * The returned token can be passed as {@link AuthInfo#getToken()} to any other method instead of the credentials,
+	 * until it is not used for a while, the session is closed by {@link #logout(String)}, or the account is deleted.
+	 *
+	 * @param auth the credentials of the user
+	 * @return the session token, or {@code null} if {@code auth} is invalid,
+	 * as stated in {@link io.sustc.service.UserService#deleteAccount(AuthInfo, long)}
+	 */
+	@Override
+	public String login(AuthInfo auth) {
+		try (Connection conn = dataSource.getConnection()) {
+			return authCache.login(conn, auth);
+		} catch (SQLException e) {
+			log.error("SQL error: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Closes a session opened by {@link #login(AuthInfo)}.
+	 *
+	 * @param token the session token
+	 * @return whether the session was open
+	 */
+	@Override
+	public boolean logout(String token) {
+		return authCache.logout(token);
+	}
+
 	/**
 	 * Deletes a user.
 	 *
@@ -87,17 +133,22 @@ public class UserServiceImpl implements UserService {
 	 */
 	@Override
 	public boolean deleteAccount(AuthInfo auth, long mid) {
-		String userDeleteSQL = "select user_del_sustc(?, ?, ?, ?, ?)";
+		String userDeleteSQL = "select user_del_sustc_by_mid(?, ?)";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(userDeleteSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setLong(5, mid);
+		     PreparedStatement stmt = statements.prepare(conn, userDeleteSQL)) {
+			List<String> indexedVideos = danmuIndex.accountVideos(conn, mid);
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setLong(2, mid);
 			ResultSet rs = stmt.executeQuery();
 			rs.next();
-			return rs.getBoolean(1);
+			boolean success = rs.getBoolean(1);
+			if (success) {
+				leaderboard.recordEvent();
+				indexedVideos.forEach(danmuIndex::remove);
+				danmuLog.accountDeleted(mid);
+				authCache.invalidate(mid);
+			}
+			return success;
 		} catch (SQLException e) {
 			log.error("SQL error: {}", e.getMessage());
 			return false;
@@ -131,14 +182,11 @@ public class UserServiceImpl implements UserService {
 //				return false;
 //			}
 //		}
-		String userDeleteSQL = "select add_follow(?, ?, ?, ?, ?)";
+		String userDeleteSQL = "select add_follow_by_mid(?, ?)";
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(userDeleteSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setLong(5, followeeMid);
+		     PreparedStatement stmt = statements.prepare(conn, userDeleteSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setLong(2, followeeMid);
 			ResultSet rs = stmt.executeQuery();
 			rs.next();
 			return rs.getBoolean(1);
@@ -175,7 +223,7 @@ public class UserServiceImpl implements UserService {
 		String[] collected;
 		String[] posted;
 		try (Connection conn = dataSource.getConnection();
-		     PreparedStatement stmt = conn.prepareStatement(userGetInfoSQL)) {
+		     PreparedStatement stmt = statements.prepare(conn, userGetInfoSQL)) {
 			stmt.setLong(1, mid);
 			ResultSet rs = stmt.executeQuery();
 			if (!rs.next()) {
@@ -18,6 +18,21 @@ public class VideoServiceImpl implements VideoService {
 	@Autowired
 	private DataSource dataSource;
 
+	@Autowired
+	private StatementDao statements;
+
+	@Autowired
+	private AuthCache authCache;
+
+	@Autowired
+	private PopularityLeaderboard leaderboard;
+
+	@Autowired
+	private DanmuTimeIndex danmuIndex;
+
+	@Autowired
+	private DanmuLog danmuLog;
+
 	/**
 	 * Posts a video. Its commit time shall be {@link LocalDateTime#now()}.
 	 *
@@ -41,17 +56,14 @@ public class VideoServiceImpl implements VideoService {
 	@Override
 	public String postVideo(AuthInfo auth, PostVideoReq req) {
 //		System.out.println("Test postVideo");
-		String postVideoSQL = "select post_video(?, ?, ?, ?, ?, ?, ?, ?)";
+		String postVideoSQL = "select post_video_by_mid(?, ?, ?, ?, ?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(postVideoSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword() == null ? "" : auth.getPassword());
-			stmt.setString(3, auth.getQq() == null ? "" : auth.getQq());
-			stmt.setString(4, auth.getWechat() == null ? "" : auth.getWechat());
-			stmt.setString(5, req.getTitle());
-			stmt.setString(6, req.getDescription());
-			stmt.setFloat(7, req.getDuration());
-			stmt.setTimestamp(8, req.getPublicTime());
+			 PreparedStatement stmt = statements.prepare(conn, postVideoSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setString(2, req.getTitle());
+			stmt.setString(3, req.getDescription());
+			stmt.setFloat(4, req.getDuration());
+			stmt.setTimestamp(5, req.getPublicTime());
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
 				return rs.getString(1);
@@ -81,17 +93,20 @@ public class VideoServiceImpl implements VideoService {
 	@Override
 	public boolean deleteVideo(AuthInfo auth, String bv) {
 //		System.out.println("Test deleteVideo");
-		String deleteVideoSQL = "select del_video(?, ?, ?, ?, ?)";
+		String deleteVideoSQL = "select del_video_by_mid(?, ?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(deleteVideoSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword() == null ? "" : auth.getPassword());
-			stmt.setString(3, auth.getQq() == null ? "" : auth.getQq());
-			stmt.setString(4, auth.getWechat() == null ? "" : auth.getWechat());
-			stmt.setString(5, bv);
+			 PreparedStatement stmt = statements.prepare(conn, deleteVideoSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setString(2, bv);
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
-				return rs.getBoolean(1);
+				boolean success = rs.getBoolean(1);
+				if (success) {
+					leaderboard.recordEvent();
+					danmuIndex.remove(bv);
+					danmuLog.videoDeleted(bv);
+				}
+				return success;
 			}
 		} catch (SQLException e) {
 			log.error("SQL error: {}", e.getMessage());
@@ -123,18 +138,15 @@ public class VideoServiceImpl implements VideoService {
 	@Override
 	public boolean updateVideoInfo(AuthInfo auth, String bv, PostVideoReq req) {
 //		System.out.println("Test updateVideoInfo");
-		String updateVideoInfoSQL = "select update_video(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+		String updateVideoInfoSQL = "select update_video_by_mid(?, ?, ?, ?, ?, ?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(updateVideoInfoSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword() == null ? "" : auth.getPassword());
-			stmt.setString(3, auth.getQq() == null ? "" : auth.getQq());
-			stmt.setString(4, auth.getWechat() == null ? "" : auth.getWechat());
-			stmt.setString(5, bv);
-			stmt.setString(6, req.getTitle());
-			stmt.setString(7, req.getDescription());
-			stmt.setFloat(8, req.getDuration());
-			stmt.setTimestamp(9, req.getPublicTime());
+			 PreparedStatement stmt = statements.prepare(conn, updateVideoInfoSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setString(2, bv);
+			stmt.setString(3, req.getTitle());
+			stmt.setString(4, req.getDescription());
+			stmt.setFloat(5, req.getDuration());
+			stmt.setTimestamp(6, req.getPublicTime());
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
 				return rs.getBoolean(1);
@@ -205,14 +217,11 @@ public class VideoServiceImpl implements VideoService {
 		if (keywords == null || keywords.isEmpty()) {
 			return Collections.emptyList();
 		}
-		String searchVideoSQL = "select search_video(?, ?, ?, ?, cast(? as text), ?, ?)";
+		String searchVideoSQL = "select search_video_by_mid(?, cast(? as text), ?, ?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(searchVideoSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setString(5, keywords
+			 PreparedStatement stmt = statements.prepare(conn, searchVideoSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setString(2, keywords
 					.replace("\\", "\\\\")
 					.replace(".", "\\.")
 					.replace("*", "\\*")
@@ -233,8 +242,8 @@ public class VideoServiceImpl implements VideoService {
 					.replace("&", "\\&")
 					.replace("_", "\\_")
 					.replace("%", "\\%"));
-			stmt.setInt(6, pageSize);
-			stmt.setInt(7, pageNum);
+			stmt.setInt(3, pageSize);
+			stmt.setInt(4, pageNum);
 			try (ResultSet rs = stmt.executeQuery()) {
 				if (rs.next()) {
 					if (rs.getArray(1) == null) {
@@ -269,7 +278,7 @@ public class VideoServiceImpl implements VideoService {
 	public double getAverageViewRate(String bv) {
 		String getAverageViewRateSQL = "select get_avg_view_rate(?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(getAverageViewRateSQL)) {
+			 PreparedStatement stmt = statements.prepare(conn, getAverageViewRateSQL)) {
 			stmt.setString(1, bv);
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
@@ -298,7 +307,7 @@ public class VideoServiceImpl implements VideoService {
 	public Set<Integer> getHotspot(String bv) {
 		String getHotspotSQL = "select get_hotspot(?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(getHotspotSQL)) {
+			 PreparedStatement stmt = statements.prepare(conn, getHotspotSQL)) {
 			stmt.setString(1, bv);
 			try (ResultSet rs = stmt.executeQuery()) {
 				if (rs.next()) {
@@ -335,14 +344,15 @@ public class VideoServiceImpl implements VideoService {
 	 */
 	@Override
 	public boolean reviewVideo(AuthInfo auth, String bv) {
-		String revVideoSQL = "select rev_video(?, ?, ?, ?, ?)";
+		String revVideoSQL = "select rev_video_by_mid(?, ?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(revVideoSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setString(5, bv);
+			 PreparedStatement stmt = statements.prepare(conn, revVideoSQL)) {
+			AuthCache.User user = authCache.user(conn, auth);
+			if (user == null || AuthCache.USER.equals(user.identity)) {
+				return false;
+			}
+			stmt.setLong(1, user.mid);
+			stmt.setString(2, bv);
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
 				return rs.getBoolean(1);
@@ -375,17 +385,18 @@ public class VideoServiceImpl implements VideoService {
 	 */
 	@Override
 	public boolean coinVideo(AuthInfo auth, String bv) {
-		String coinVideoSQL = "select coin_video(?, ?, ?, ?, ?)";
+		String coinVideoSQL = "select coin_video_by_mid(?, ?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(coinVideoSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setString(5, bv);
+			 PreparedStatement stmt = statements.prepare(conn, coinVideoSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setString(2, bv);
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
-				return rs.getBoolean(1);
+				boolean success = rs.getBoolean(1);
+				if (success) {
+					leaderboard.recordEvent();
+				}
+				return success;
 			}
 		} catch (SQLException e) {
 			log.error("SQL error: {}", e.getMessage());
@@ -412,17 +423,18 @@ public class VideoServiceImpl implements VideoService {
 	 */
 	@Override
 	public boolean likeVideo(AuthInfo auth, String bv) {
-		String likeVideoSQL = "select like_video(?, ?, ?, ?, ?)";
+		String likeVideoSQL = "select like_video_by_mid(?, ?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(likeVideoSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setString(5, bv);
+			 PreparedStatement stmt = statements.prepare(conn, likeVideoSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setString(2, bv);
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
-				return rs.getBoolean(1);
+				boolean success = rs.getBoolean(1);
+				if (success) {
+					leaderboard.recordEvent();
+				}
+				return success;
 			}
 		} catch (SQLException e) {
 			log.error("SQL error: {}", e.getMessage());
@@ -449,17 +461,18 @@ public class VideoServiceImpl implements VideoService {
 	 */
 	@Override
 	public boolean collectVideo(AuthInfo auth, String bv) {
-		String collectVideoSQL = "select fav_video(?, ?, ?, ?, ?)";
+		String collectVideoSQL = "select fav_video_by_mid(?, ?)";
 		try (Connection conn = dataSource.getConnection();
-			 PreparedStatement stmt = conn.prepareStatement(collectVideoSQL)) {
-			stmt.setLong(1, auth.getMid());
-			stmt.setString(2, auth.getPassword());
-			stmt.setString(3, auth.getQq());
-			stmt.setString(4, auth.getWechat());
-			stmt.setString(5, bv);
+			 PreparedStatement stmt = statements.prepare(conn, collectVideoSQL)) {
+			stmt.setLong(1, authCache.resolve(conn, auth));
+			stmt.setString(2, bv);
 			try (ResultSet rs = stmt.executeQuery()) {
 				rs.next();
-				return rs.getBoolean(1);
+				boolean success = rs.getBoolean(1);
+				if (success) {
+					leaderboard.recordEvent();
+				}
+				return success;
 			}
 		} catch (SQLException e) {
 			log.error("SQL error: {}", e.getMessage());
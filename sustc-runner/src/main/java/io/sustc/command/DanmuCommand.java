@@ -48,6 +48,37 @@ public class DanmuCommand {
         return danmuService.displayDanmu(bv, timeStart, timeEnd, filter);
     }
 
+    @ShellMethod(key = "danmu capped")
+    public List<Long> displayDanmuCapped(
+            String bv,
+            Float timeStart,
+            Float timeEnd,
+            @ShellOption(defaultValue = "false") Boolean filter,
+            @ShellOption(defaultValue = "1") Float window,
+            @ShellOption(defaultValue = "10") Integer limit,
+            @ShellOption(defaultValue = "false") Boolean mostLiked
+    ) {
+        return danmuService.displayDanmu(bv, timeStart, timeEnd, filter, window, limit, mostLiked);
+    }
+
+    @ShellMethod(key = "danmu stream", value = "Streams the danmus in a time range and counts them")
+    public long streamDanmu(
+            String bv,
+            Float timeStart,
+            Float timeEnd,
+            @ShellOption(defaultValue = "false") Boolean filter,
+            @ShellOption(defaultValue = "4096") Integer chunk
+    ) {
+        long count = 0;
+        val ids = new long[chunk];
+        try (val cursor = danmuService.streamDanmu(bv, timeStart, timeEnd, filter)) {
+            for (int n; (n = cursor.read(ids)) >= 0; ) {
+                count += n;
+            }
+        }
+        return count;
+    }
+
     @ShellMethod(key = "danmu like")
     public boolean likeDanmu(
             @ShellOption(defaultValue = ShellOption.NULL) Long mid,
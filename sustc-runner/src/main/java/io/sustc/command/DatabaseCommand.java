@@ -1,12 +1,17 @@
 package io.sustc.command;
 
 import io.sustc.benchmark.BenchmarkService;
+import io.sustc.csv.CsvImporter;
+import io.sustc.service.DataImportService;
 import io.sustc.service.DatabaseService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.shell.standard.ShellComponent;
 import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.List;
 
 @ShellComponent
@@ -16,6 +21,9 @@ public class DatabaseCommand {
     @Autowired
     private DatabaseService databaseService;
 
+    @Autowired(required = false)
+    private DataImportService dataImportService;
+
     @Autowired
     private BenchmarkService benchmarkService;
 
@@ -25,9 +33,15 @@ public class DatabaseCommand {
     }
 
     @ShellMethod(key = "db import", value = "Import data from csv")
-    public void importData() {
-//        databaseService.truncate();
-//        benchmarkService.importData();
+    public String importData(
+            @ShellOption(defaultValue = "data", help = "Directory of users.csv, videos.csv and danmu.csv") String dir,
+            @ShellOption(defaultValue = "0", help = "Parser threads, 0 for one per processor") int workers,
+            @ShellOption(defaultValue = "false", help = "Truncate tables first") boolean truncate
+    ) throws IOException {
+        if (truncate) {
+            databaseService.truncate();
+        }
+        return new CsvImporter(workers).run(Paths.get(dir), databaseService, dataImportService);
     }
 
     @ShellMethod(key = "db truncate", value = "Truncate tables")
@@ -41,6 +41,28 @@ public class UserCommand {
         return userService.register(req);
     }
 
+    @ShellMethod(key = "user login")
+    public String login(
+            @ShellOption(defaultValue = ShellOption.NULL) Long mid,
+            @ShellOption(defaultValue = ShellOption.NULL) String pwd,
+            @ShellOption(defaultValue = ShellOption.NULL) String qq,
+            @ShellOption(defaultValue = ShellOption.NULL) String wechat
+    ) {
+        val auth = AuthInfo.builder()
+                .mid(mid)
+                .password(pwd)
+                .qq(qq)
+                .wechat(wechat)
+                .build();
+
+        return userService.login(auth);
+    }
+
+    @ShellMethod(key = "user logout")
+    public boolean logout(String token) {
+        return userService.logout(token);
+    }
+
     @ShellMethod(key = "user delete")
     public void deleteAccount(
             @ShellOption(defaultValue = ShellOption.NULL) Long mid,
@@ -0,0 +1,312 @@
+package io.sustc.csv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * Walks the rows of a csv split (RFC 4180: comma separated, {@code "} quoted, {@code ""} escaped).
+ * <p>
+ * Only the byte offsets of the fields are recorded, numbers, lists and timestamps are decoded
+ * straight from the buffer, and a {@link String} is created for text fields only.
+ * Fields beyond the end of a row read as empty.
+ */
+public class CsvCursor {
+
+    private final ByteBuffer buffer;
+
+    private final int limit;
+
+    private int pos;
+
+    private int fieldCount;
+
+    private int[] starts = new int[16];
+
+    private int[] ends = new int[16];
+
+    private boolean[] escaped = new boolean[16];
+
+    private byte[] scratch = new byte[256];
+
+    private long[] longs = new long[64];
+
+    private float[] floats = new float[64];
+
+    public CsvCursor(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+    }
+
+    /**
+     * Moves to the next non-blank row.
+     *
+     * @return false if there are no more rows
+     */
+    public boolean nextRow() {
+        while (pos < limit) {
+            fieldCount = 0;
+            boolean rowEnd = false;
+            while (!rowEnd) {
+                if (fieldCount == starts.length) {
+                    starts = Arrays.copyOf(starts, fieldCount * 2);
+                    ends = Arrays.copyOf(ends, fieldCount * 2);
+                    escaped = Arrays.copyOf(escaped, fieldCount * 2);
+                }
+                int field = fieldCount++;
+                escaped[field] = false;
+                if (pos < limit && buffer.get(pos) == '"') {
+                    starts[field] = ++pos;
+                    while (pos < limit) {
+                        if (buffer.get(pos) == '"') {
+                            if (pos + 1 < limit && buffer.get(pos + 1) == '"') {
+                                escaped[field] = true;
+                                pos += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        ++pos;
+                    }
+                    ends[field] = pos++;
+                    // skip anything between the closing quote and the separator
+                    while (pos < limit && buffer.get(pos) != ',' && buffer.get(pos) != '\n') {
+                        ++pos;
+                    }
+                } else {
+                    starts[field] = pos;
+                    while (pos < limit && buffer.get(pos) != ',' && buffer.get(pos) != '\n') {
+                        ++pos;
+                    }
+                    ends[field] = pos;
+                    if (pos > starts[field] && buffer.get(pos - 1) == '\r' && (pos >= limit || buffer.get(pos) == '\n')) {
+                        --ends[field];
+                    }
+                }
+                rowEnd = pos >= limit || buffer.get(pos) == '\n';
+                ++pos;
+            }
+            if (fieldCount > 1 || ends[0] > starts[0]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public boolean isEmpty(int field) {
+        return field < 0 || field >= fieldCount || ends[field] == starts[field];
+    }
+
+    /**
+     * @return the field as text, {@code null} if it is empty
+     */
+    public String text(int field) {
+        if (isEmpty(field)) {
+            return null;
+        }
+        int start = starts[field];
+        int length = ends[field] - start;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        if (!escaped[field]) {
+            buffer.get(start, scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+        int n = 0;
+        for (int i = start; i < ends[field]; ++i) {
+            byte b = buffer.get(i);
+            scratch[n++] = b;
+            if (b == '"') {
+                ++i;
+            }
+        }
+        return new String(scratch, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the field as an integer, {@code 0} if it is empty
+     */
+    public long longValue(int field) {
+        if (isEmpty(field)) {
+            return 0;
+        }
+        int i = skipBlank(starts[field], ends[field]);
+        boolean negative = i < ends[field] && buffer.get(i) == '-';
+        if (negative || (i < ends[field] && buffer.get(i) == '+')) {
+            ++i;
+        }
+        long value = 0;
+        for (; i < ends[field]; ++i) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the field as an integer, {@code null} if it is empty
+     */
+    public Long longOrNull(int field) {
+        return isEmpty(field) ? null : longValue(field);
+    }
+
+    /**
+     * @return the field as a float, {@code 0} if it is empty
+     */
+    public float floatValue(int field) {
+        if (isEmpty(field)) {
+            return 0;
+        }
+        int from = skipBlank(starts[field], ends[field]);
+        int to = from;
+        while (to < ends[field] && isNumberByte(buffer.get(to))) {
+            ++to;
+        }
+        return parseFloat(from, to);
+    }
+
+    /**
+     * Reads every integer in the field, so both {@code [1, 2, 3]} and {@code 1;2;3} are accepted.
+     */
+    public long[] longs(int field) {
+        if (isEmpty(field)) {
+            return new long[0];
+        }
+        int n = 0;
+        int i = starts[field];
+        while (i < ends[field]) {
+            byte b = buffer.get(i);
+            boolean negative = b == '-';
+            int digits = negative ? i + 1 : i;
+            if (digits >= ends[field] || buffer.get(digits) < '0' || buffer.get(digits) > '9') {
+                ++i;
+                continue;
+            }
+            long value = 0;
+            for (i = digits; i < ends[field] && buffer.get(i) >= '0' && buffer.get(i) <= '9'; ++i) {
+                value = value * 10 + (buffer.get(i) - '0');
+            }
+            if (n == longs.length) {
+                longs = Arrays.copyOf(longs, n * 2);
+            }
+            longs[n++] = negative ? -value : value;
+        }
+        return Arrays.copyOf(longs, n);
+    }
+
+    /**
+     * Reads every number in the field, see {@link #longs(int)}.
+     */
+    public float[] floats(int field) {
+        if (isEmpty(field)) {
+            return new float[0];
+        }
+        int n = 0;
+        int i = starts[field];
+        while (i < ends[field]) {
+            byte b = buffer.get(i);
+            if (!(b >= '0' && b <= '9') && b != '-' && b != '.') {
+                ++i;
+                continue;
+            }
+            int from = i;
+            while (i < ends[field] && isNumberByte(buffer.get(i))) {
+                ++i;
+            }
+            if (n == floats.length) {
+                floats = Arrays.copyOf(floats, n * 2);
+            }
+            floats[n++] = parseFloat(from, i);
+        }
+        return Arrays.copyOf(floats, n);
+    }
+
+    /**
+     * Reads {@code yyyy-MM-dd HH:mm:ss}, falling back to {@link Timestamp#valueOf(String)} for other layouts.
+     *
+     * @return the field as a timestamp, {@code null} if it is empty
+     */
+    public Timestamp timestamp(int field) {
+        if (isEmpty(field)) {
+            return null;
+        }
+        int s = skipBlank(starts[field], ends[field]);
+        if (ends[field] - s == 19 && buffer.get(s + 4) == '-' && buffer.get(s + 7) == '-'
+            && (buffer.get(s + 10) == ' ' || buffer.get(s + 10) == 'T')
+            && buffer.get(s + 13) == ':' && buffer.get(s + 16) == ':') {
+            return Timestamp.valueOf(LocalDateTime.of(
+                digits(s, 4), digits(s + 5, 2), digits(s + 8, 2),
+                digits(s + 11, 2), digits(s + 14, 2), digits(s + 17, 2)));
+        }
+        return Timestamp.valueOf(text(field).trim());
+    }
+
+    private int digits(int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; ++i) {
+            value = value * 10 + (buffer.get(i) - '0');
+        }
+        return value;
+    }
+
+    private int skipBlank(int from, int to) {
+        while (from < to && buffer.get(from) == ' ') {
+            ++from;
+        }
+        return from;
+    }
+
+    private static boolean isNumberByte(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    private static final float[] POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    /**
+     * Plain decimals with at most 7 significant digits are exact in float arithmetic,
+     * anything else goes through {@link Float#parseFloat(String)}.
+     */
+    private float parseFloat(int from, int to) {
+        int i = from;
+        boolean negative = i < to && buffer.get(i) == '-';
+        if (negative) {
+            ++i;
+        }
+        long mantissa = 0;
+        int scale = -1;
+        int digitCount = 0;
+        for (; i < to; ++i) {
+            byte b = buffer.get(i);
+            if (b == '.' && scale < 0) {
+                scale = 0;
+            } else if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa > 0) {
+                    ++digitCount;
+                }
+                if (scale >= 0) {
+                    ++scale;
+                }
+            } else {
+                break;
+            }
+        }
+        if (i == to && digitCount <= 7 && scale < POWERS_OF_TEN.length) {
+            float value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+            return negative ? -value : value;
+        }
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return Float.parseFloat(new String(bytes, StandardCharsets.US_ASCII));
+    }
+}
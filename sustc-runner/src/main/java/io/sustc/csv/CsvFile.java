@@ -0,0 +1,135 @@
+package io.sustc.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A csv file read through memory-mapped regions.
+ * <p>
+ * The file is cut into splits of about {@code splitBytes} that end right after a row, so that the splits
+ * can be parsed independently. A newline only ends a row outside quotes, which is decided by the parity of
+ * the quotes before it: the quotes of every region are counted in parallel first, then each split point
+ * is moved forward to the next newline at even parity.
+ */
+public class CsvFile implements Closeable {
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private CsvFile(Path path, FileChannel channel) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    public static CsvFile open(Path path) throws IOException {
+        return new CsvFile(path, FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public MappedByteBuffer map(long from, long to) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the offset right after the header row
+     */
+    public long headerEnd() {
+        long end = nextRowStart(0, false, Math.min(size, 1 << 20));
+        return end < 0 ? size : end;
+    }
+
+    /**
+     * Cuts the rows after the header into splits.
+     *
+     * @return ascending offsets, from {@link #headerEnd()} to {@link #size()}, split {@code i} is {@code [o[i], o[i + 1])}
+     */
+    public long[] split(long splitBytes, ExecutorService pool) {
+        long dataStart = headerEnd();
+        int regions = (int) Math.max(1, (size - dataStart + splitBytes - 1) / splitBytes);
+
+        List<CompletableFuture<Long>> quoteCounts = new ArrayList<>();
+        for (int i = 0; i < regions; ++i) {
+            long from = dataStart + i * splitBytes;
+            long to = Math.min(size, from + splitBytes);
+            quoteCounts.add(CompletableFuture.supplyAsync(() -> countQuotes(from, to), pool));
+        }
+
+        List<CompletableFuture<Long>> boundaries = new ArrayList<>();
+        long quotes = 0;
+        for (int i = 1; i < regions; ++i) {
+            quotes += quoteCounts.get(i - 1).join();
+            long from = dataStart + i * splitBytes;
+            boolean inQuotes = (quotes & 1) == 1;
+            boundaries.add(CompletableFuture.supplyAsync(
+                () -> nextRowStart(from, inQuotes, Math.min(size, from + splitBytes)), pool));
+        }
+
+        List<Long> offsets = new ArrayList<>();
+        offsets.add(dataStart);
+        for (CompletableFuture<Long> boundary : boundaries) {
+            long offset = boundary.join();
+            // a row longer than a region leaves no boundary in it
+            if (offset > offsets.get(offsets.size() - 1) && offset < size) {
+                offsets.add(offset);
+            }
+        }
+        offsets.add(size);
+        return offsets.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private long countQuotes(long from, long to) {
+        MappedByteBuffer buffer = map(from, to);
+        long count = 0;
+        for (int i = 0, n = buffer.limit(); i < n; ++i) {
+            if (buffer.get(i) == '"') {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the offset after the first newline outside quotes in {@code [from, to)}, or {@code -1}
+     */
+    private long nextRowStart(long from, boolean inQuotes, long to) {
+        MappedByteBuffer buffer = map(from, to);
+        for (int i = 0, n = buffer.limit(); i < n; ++i) {
+            byte b = buffer.get(i);
+            if (b == '"') {
+                inQuotes = !inQuotes;
+            } else if (b == '\n' && !inQuotes) {
+                return from + i + 1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
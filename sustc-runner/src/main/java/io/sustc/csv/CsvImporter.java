@@ -0,0 +1,81 @@
+package io.sustc.csv;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+import io.sustc.service.DataImportService;
+import io.sustc.service.DatabaseService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Streams {@code users.csv}, {@code videos.csv} and {@code danmu.csv} of a directory into the database.
+ * <p>
+ * Every file is parsed in parallel splits (see {@link CsvFile}) and its records are handed to
+ * {@link DataImportService#importData(Iterator, Iterator, Iterator)}, which loads them in chunks.
+ * Without a {@link DataImportService}, the records are collected and passed to {@link DatabaseService#importData}.
+ */
+@Slf4j
+public class CsvImporter {
+
+    public static final String USER_FILE = "users.csv";
+
+    public static final String VIDEO_FILE = "videos.csv";
+
+    public static final String DANMU_FILE = "danmu.csv";
+
+    private static final long SPLIT_BYTES = 16L << 20;
+
+    private static final long PROGRESS_PERIOD_MILLIS = 2000;
+
+    private final int workers;
+
+    public CsvImporter(int workers) {
+        this.workers = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return a summary with the rows imported and the rows per second
+     */
+    public String run(Path dir, DatabaseService databaseService, DataImportService dataImportService) throws IOException {
+        ExecutorService pool = new ForkJoinPool(workers);
+        try (CsvFile users = CsvFile.open(dir.resolve(USER_FILE));
+             CsvFile videos = CsvFile.open(dir.resolve(VIDEO_FILE));
+             CsvFile danmus = CsvFile.open(dir.resolve(DANMU_FILE));
+             ImportProgress progress = new ImportProgress(PROGRESS_PERIOD_MILLIS)) {
+            // a window per file keeps every worker busy while bounding the splits in memory
+            int window = workers * 2;
+            Iterator<UserRecord> userRecords = new CsvRecordIterator<>(users, CsvRecords::users, pool,
+                window, SPLIT_BYTES, progress.source("users", users.size()));
+            Iterator<VideoRecord> videoRecords = new CsvRecordIterator<>(videos, CsvRecords::videos, pool,
+                window, SPLIT_BYTES, progress.source("videos", videos.size()));
+            Iterator<DanmuRecord> danmuRecords = new CsvRecordIterator<>(danmus, CsvRecords::danmus, pool,
+                window, SPLIT_BYTES, progress.source("danmu", danmus.size()));
+
+            if (dataImportService != null) {
+                dataImportService.importData(danmuRecords, userRecords, videoRecords);
+            } else {
+                log.warn("No DataImportService found, collecting all records before importing");
+                databaseService.importData(toList(danmuRecords), toList(userRecords), toList(videoRecords));
+            }
+            String summary = progress.summary();
+            log.info(summary);
+            return summary;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static <T> List<T> toList(Iterator<T> iterator) {
+        List<T> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+}
@@ -0,0 +1,101 @@
+package io.sustc.csv;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * Iterates the records of a csv file, parsing up to {@code window} splits ahead in parallel.
+ * <p>
+ * The records come out in file order, so the same file always yields the same sequence,
+ * and at most {@code window} parsed splits are held in memory.
+ */
+public class CsvRecordIterator<T> implements Iterator<T> {
+
+    private final CsvFile file;
+
+    private final CsvRecords.RowMapper<T> mapper;
+
+    private final ExecutorService pool;
+
+    private final int window;
+
+    private final long[] splits;
+
+    private final ImportProgress.Source progress;
+
+    private final Deque<CompletableFuture<List<T>>> parsing = new ArrayDeque<>();
+
+    private int nextSplit;
+
+    private Iterator<T> current = Collections.emptyIterator();
+
+    public CsvRecordIterator(
+            CsvFile file,
+            Function<CsvCursor, CsvRecords.RowMapper<T>> mapperFactory,
+            ExecutorService pool,
+            int window,
+            long splitBytes,
+            ImportProgress.Source progress
+    ) {
+        this.file = file;
+        this.pool = pool;
+        this.window = Math.max(window, 1);
+        this.progress = progress;
+
+        long headerEnd = file.headerEnd();
+        CsvCursor header = new CsvCursor(file.map(0, headerEnd));
+        header.nextRow();
+        this.mapper = mapperFactory.apply(header);
+        this.splits = file.split(splitBytes, pool);
+        progress.parsed(0, headerEnd);
+
+        while (parsing.size() < this.window && submitNext()) {
+            // fill the window
+        }
+    }
+
+    private boolean submitNext() {
+        if (nextSplit + 1 >= splits.length) {
+            return false;
+        }
+        long from = splits[nextSplit];
+        long to = splits[++nextSplit];
+        parsing.add(CompletableFuture.supplyAsync(() -> parse(from, to), pool));
+        return true;
+    }
+
+    private List<T> parse(long from, long to) {
+        List<T> records = new ArrayList<>();
+        CsvCursor row = new CsvCursor(file.map(from, to));
+        while (row.nextRow()) {
+            records.add(mapper.map(row));
+        }
+        progress.parsed(records.size(), to - from);
+        return records;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext() && !parsing.isEmpty()) {
+            current = parsing.poll().join().iterator();
+            submitNext();
+        }
+        return current.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+}
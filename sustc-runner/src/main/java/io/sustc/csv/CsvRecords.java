@@ -0,0 +1,134 @@
+package io.sustc.csv;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps csv rows to records by the header.
+ * <p>
+ * Column names are compared in lower case with anything but letters and digits removed,
+ * and shall match the record fields, e.g. {@code Owner Mid} or {@code owner_mid} for {@link VideoRecord#getOwnerMid()}.
+ * Missing columns leave the fields at their defaults, unknown columns are ignored.
+ * List columns such as {@code following} hold numbers in any layout, e.g. {@code [1, 2, 3]}.
+ */
+public final class CsvRecords {
+
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        T map(CsvCursor row);
+    }
+
+    private CsvRecords() {
+    }
+
+    public static RowMapper<UserRecord> users(CsvCursor header) {
+        Map<String, Integer> columns = columns(header);
+        int mid = column(columns, "mid");
+        int name = column(columns, "name");
+        int sex = column(columns, "sex");
+        int birthday = column(columns, "birthday");
+        int level = column(columns, "level");
+        int coin = column(columns, "coin");
+        int sign = column(columns, "sign");
+        int identity = column(columns, "identity");
+        int password = column(columns, "password");
+        int qq = column(columns, "qq");
+        int wechat = column(columns, "wechat");
+        int following = column(columns, "following");
+        return row -> {
+            UserRecord record = new UserRecord();
+            record.setMid(row.longValue(mid));
+            record.setName(row.text(name));
+            record.setSex(row.text(sex));
+            record.setBirthday(row.text(birthday));
+            record.setLevel((short) row.longValue(level));
+            record.setCoin((int) row.longValue(coin));
+            record.setSign(row.text(sign));
+            String identityText = row.text(identity);
+            record.setIdentity(identityText != null && identityText.toUpperCase().startsWith("SUPER")
+                ? UserRecord.Identity.SUPERUSER : UserRecord.Identity.USER);
+            record.setPassword(row.text(password));
+            record.setQq(row.text(qq));
+            record.setWechat(row.text(wechat));
+            record.setFollowing(row.longs(following));
+            return record;
+        };
+    }
+
+    public static RowMapper<VideoRecord> videos(CsvCursor header) {
+        Map<String, Integer> columns = columns(header);
+        int bv = column(columns, "bv");
+        int title = column(columns, "title");
+        int ownerMid = column(columns, "ownermid");
+        int ownerName = column(columns, "ownername");
+        int commitTime = column(columns, "committime");
+        int reviewTime = column(columns, "reviewtime");
+        int publicTime = column(columns, "publictime");
+        int duration = column(columns, "duration");
+        int description = column(columns, "description");
+        int reviewer = column(columns, "reviewer");
+        int like = column(columns, "like");
+        int coin = column(columns, "coin");
+        int favorite = column(columns, "favorite");
+        int viewerMids = column(columns, "viewermids");
+        int viewTime = column(columns, "viewtime");
+        return row -> {
+            VideoRecord record = new VideoRecord();
+            record.setBv(row.text(bv));
+            record.setTitle(row.text(title));
+            record.setOwnerMid(row.longValue(ownerMid));
+            record.setOwnerName(row.text(ownerName));
+            record.setCommitTime(row.timestamp(commitTime));
+            record.setReviewTime(row.timestamp(reviewTime));
+            record.setPublicTime(row.timestamp(publicTime));
+            record.setDuration(row.floatValue(duration));
+            record.setDescription(row.text(description));
+            record.setReviewer(row.longOrNull(reviewer));
+            record.setLike(row.longs(like));
+            record.setCoin(row.longs(coin));
+            record.setFavorite(row.longs(favorite));
+            record.setViewerMids(row.longs(viewerMids));
+            record.setViewTime(row.floats(viewTime));
+            return record;
+        };
+    }
+
+    public static RowMapper<DanmuRecord> danmus(CsvCursor header) {
+        Map<String, Integer> columns = columns(header);
+        int bv = column(columns, "bv");
+        int mid = column(columns, "mid");
+        int time = column(columns, "time");
+        int content = column(columns, "content");
+        int postTime = column(columns, "posttime");
+        int likedBy = column(columns, "likedby");
+        return row -> {
+            DanmuRecord record = new DanmuRecord();
+            record.setBv(row.text(bv));
+            record.setMid(row.longValue(mid));
+            record.setTime(row.floatValue(time));
+            record.setContent(row.text(content));
+            record.setPostTime(row.timestamp(postTime));
+            record.setLikedBy(row.longs(likedBy));
+            return record;
+        };
+    }
+
+    private static Map<String, Integer> columns(CsvCursor header) {
+        Map<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < header.fieldCount(); ++i) {
+            String name = header.text(i);
+            if (name != null) {
+                columns.putIfAbsent(name.toLowerCase().replaceAll("[^a-z0-9]", ""), i);
+            }
+        }
+        return columns;
+    }
+
+    private static int column(Map<String, Integer> columns, String name) {
+        return columns.getOrDefault(name, -1);
+    }
+}
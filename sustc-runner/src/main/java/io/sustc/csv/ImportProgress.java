@@ -0,0 +1,92 @@
+package io.sustc.csv;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Reports the parsed share of each csv file and the records per second while an import runs.
+ */
+@Slf4j
+public class ImportProgress implements AutoCloseable {
+
+    public static final class Source {
+
+        private final String name;
+
+        private final long totalBytes;
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicLong rows = new AtomicLong();
+
+        private Source(String name, long totalBytes) {
+            this.name = name;
+            this.totalBytes = totalBytes;
+        }
+
+        void parsed(long rowCount, long byteCount) {
+            rows.addAndGet(rowCount);
+            bytes.addAndGet(byteCount);
+        }
+
+        @Override
+        public String toString() {
+            long percent = totalBytes == 0 ? 100 : bytes.get() * 100 / totalBytes;
+            return String.format("%s %d%% %d rows", name, percent, rows.get());
+        }
+    }
+
+    private final List<Source> sources = new ArrayList<>();
+
+    private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+
+    private final long startTime = System.currentTimeMillis();
+
+    private long lastRows;
+
+    private long lastTime = startTime;
+
+    public ImportProgress(long periodMillis) {
+        reporter.scheduleAtFixedRate(this::report, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized Source source(String name, long totalBytes) {
+        Source source = new Source(name, totalBytes);
+        sources.add(source);
+        return source;
+    }
+
+    public long rows() {
+        return sources.stream().mapToLong(it -> it.rows.get()).sum();
+    }
+
+    private synchronized void report() {
+        long now = System.currentTimeMillis();
+        long rows = rows();
+        long rate = (rows - lastRows) * 1000 / Math.max(now - lastTime, 1);
+        lastRows = rows;
+        lastTime = now;
+        log.info("{}, {} rows/s", sources.stream().map(Source::toString).collect(Collectors.joining(", ")), rate);
+    }
+
+    /**
+     * @return a summary of the whole run
+     */
+    public String summary() {
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        return String.format("Imported %d rows in %.1f s, %d rows/s (%s)", rows(), elapsed / 1000.0,
+            rows() * 1000 / elapsed, sources.stream().map(Source::toString).collect(Collectors.joining(", ")));
+    }
+
+    @Override
+    public void close() {
+        reporter.shutdownNow();
+    }
+}